@@ -0,0 +1,150 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ontotext.graphdb.Config;
+import com.ontotext.trree.OwlimSchemaRepository;
+
+/**
+ * the explain predicates end to end on an embedded repository: the planner, the inferencer,
+ * ExplainIter.report() and the accessor patterns that fetch each premise
+ *
+ * run with: mvn -P benchmark verify, add -prof gc to jmh.args for the allocation rate
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExplainBenchmark {
+	@Param({"subClassChain", "sameAsClique", "derivedTypes"})
+	String dataset;
+
+	@Param({"50"})
+	int size;
+
+	File workDir;
+	SailRepository repository;
+	RepositoryConnection conn;
+	String explainQuery;
+	String proofTreeQuery;
+	String explainAllQuery;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		workDir = Files.createTempDirectory("proof-benchmark").toFile();
+		System.setProperty("graphdb.home.work", workDir.getAbsolutePath());
+		Config.reset();
+		Map<String, String> params = new HashMap<String, String>();
+		OwlimSchemaRepository sail = new OwlimSchemaRepository();
+		params.put("register-plugins", ProofPlugin.class.getName());
+		params.put("ruleset", "owl-horst-optimized");
+		sail.setParameters(params);
+		repository = new SailRepository(sail);
+		repository.setDataDir(new File(workDir, "repository"));
+		repository.init();
+		conn = repository.getConnection();
+		conn.begin();
+		IRI[] target = SyntheticData.generate(dataset, conn, size);
+		conn.commit();
+
+		String statement = "<" + target[0] + "> <" + target[1] + "> <" + target[2] + ">";
+		String accessors =
+				"     ?ctx pr:rule ?rule .\n" +
+				"     ?ctx pr:subject ?subj .\n" +
+				"     ?ctx pr:predicate ?pred .\n" +
+				"     ?ctx pr:object ?obj .\n" +
+				"     ?ctx pr:context ?context .\n";
+		explainQuery = "PREFIX pr: <http://www.ontotext.com/proof/>\n" +
+				"select * {\n" +
+				"     ?ctx pr:explain (" + statement + ") .\n" + accessors +
+				"}";
+		proofTreeQuery = "PREFIX pr: <http://www.ontotext.com/proof/>\n" +
+				"select * {\n" +
+				"     ?ctx pr:proofTree (" + statement + ") .\n" +
+				"     ?ctx pr:node ?node .\n" + accessors +
+				"}";
+		explainAllQuery = "PREFIX pr: <http://www.ontotext.com/proof/>\n" +
+				"select * {\n" +
+				"     ?ctx pr:explainAll (<" + target[1] + ">) .\n" + accessors +
+				"}";
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		conn.close();
+		repository.shutDown();
+		System.clearProperty("graphdb.home.work");
+		Config.reset();
+		delete(workDir);
+	}
+
+	/**
+	 * latency of a single explained statement
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long explain() {
+		return count(explainQuery);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long proofTree() {
+		return count(proofTreeQuery);
+	}
+
+	/**
+	 * throughput of explaining all statements with the predicate of the target one
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public long explainAll() {
+		return count(explainAllQuery);
+	}
+
+	private long count(String query) {
+		long count = 0;
+		try (TupleQueryResult result = conn.prepareTupleQuery(query).evaluate()) {
+			while (result.hasNext()) {
+				result.next();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
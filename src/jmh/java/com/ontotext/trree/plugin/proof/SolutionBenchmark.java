@@ -0,0 +1,89 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * the per solution work without a repository: dropping the duplicate solutions as report() does
+ * and reading the premises as the accessor patterns do
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolutionBenchmark {
+	@Param({"1000"})
+	int solutions;
+
+	@Param({"3"})
+	int premises;
+
+	long[][] reported;
+	ProofPlugin.ExplainIter iter;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		reported = new long[solutions * 2][];
+		for (int s = 0; s < solutions; s++) {
+			long[] packed = new long[premises * SolutionKeySet.PREMISE_WIDTH];
+			for (int i = 0; i < packed.length; i++)
+				packed[i] = 1 + random.nextInt(10000);
+			reported[s] = packed;
+			// the same solution with the premises in reverse order, a duplicate
+			long[] reversed = new long[packed.length];
+			for (int p = 0; p < premises; p++)
+				System.arraycopy(packed, p * SolutionKeySet.PREMISE_WIDTH, reversed, (premises - 1 - p) * SolutionKeySet.PREMISE_WIDTH, SolutionKeySet.PREMISE_WIDTH);
+			reported[solutions + s] = reversed;
+		}
+
+		ProofPlugin plugin = new ProofPlugin();
+		iter = plugin.new ExplainIter(plugin.new ContextImpl(), 1, 10, 11, 12, false, false, 0);
+		int rule = plugin.ruleNames.indexOf("rule_benchmark");
+		for (int s = 0; s < solutions; s++)
+			iter.solutions.add(rule, reported[s], 0, premises);
+	}
+
+	/**
+	 * the duplicate check of all reported solutions, half of them duplicates
+	 */
+	@Benchmark
+	public int dropDuplicates() {
+		SolutionKeySet seen = new SolutionKeySet();
+		for (long[] packed : reported)
+			seen.add(1, packed, 0, premises);
+		return seen.size();
+	}
+
+	/**
+	 * next() and the accessors for all premises
+	 */
+	@Benchmark
+	public void iterate(Blackhole blackhole) {
+		iter.current = -1;
+		iter.premise = -1;
+		while (iter.next()) {
+			blackhole.consume(iter.currentRuleIndex());
+			blackhole.consume(iter.value(0));
+			blackhole.consume(iter.value(1));
+			blackhole.consume(iter.value(2));
+			blackhole.consume(iter.value(3));
+		}
+	}
+}
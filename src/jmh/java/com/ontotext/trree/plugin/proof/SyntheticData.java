@@ -0,0 +1,74 @@
+package com.ontotext.trree.plugin.proof;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.OWL;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.model.vocabulary.RDFS;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+
+/**
+ * generators of data sets with a known shape of the derivations, each one adds its statements
+ * and returns the statement that is explained by the benchmarks
+ */
+class SyntheticData {
+	static final String NAMESPACE = "http://example.com/proof/";
+
+	/**
+	 * a chain of size rdfs:subClassOf statements and an instance of the first class, the type of the
+	 * instance in the last class is derived through each of the classes in the chain
+	 */
+	static IRI[] subClassChain(RepositoryConnection conn, int size) {
+		ValueFactory vf = conn.getValueFactory();
+		for (int i = 0; i < size; i++)
+			conn.add(iri(vf, "C" + i), RDFS.SUBCLASSOF, iri(vf, "C" + (i + 1)));
+		conn.add(iri(vf, "instance"), RDF.TYPE, iri(vf, "C0"));
+		return new IRI[] {iri(vf, "instance"), RDF.TYPE, iri(vf, "C" + size)};
+	}
+
+	/**
+	 * a ring of size owl:sameAs statements, which makes all members equivalent, and a statement about the
+	 * first member that is copied to all others
+	 */
+	static IRI[] sameAsClique(RepositoryConnection conn, int size) {
+		ValueFactory vf = conn.getValueFactory();
+		for (int i = 0; i < size; i++)
+			conn.add(iri(vf, "s" + i), OWL.SAMEAS, iri(vf, "s" + ((i + 1) % size)));
+		conn.add(iri(vf, "s0"), iri(vf, "p"), iri(vf, "o"));
+		return new IRI[] {iri(vf, "s" + (size - 1)), iri(vf, "p"), iri(vf, "o")};
+	}
+
+	/**
+	 * size properties, each with a different domain under a common superclass, and size instances that use
+	 * all properties, so the type of each instance in the superclass has size derivations
+	 */
+	static IRI[] derivedTypes(RepositoryConnection conn, int size) {
+		ValueFactory vf = conn.getValueFactory();
+		for (int i = 0; i < size; i++) {
+			conn.add(iri(vf, "M" + i), RDFS.SUBCLASSOF, iri(vf, "Top"));
+			conn.add(iri(vf, "p" + i), RDFS.DOMAIN, iri(vf, "M" + i));
+		}
+		for (int j = 0; j < size; j++) {
+			for (int i = 0; i < size; i++)
+				conn.add(iri(vf, "x" + j), iri(vf, "p" + i), iri(vf, "y" + i));
+		}
+		return new IRI[] {iri(vf, "x0"), RDF.TYPE, iri(vf, "Top")};
+	}
+
+	static IRI[] generate(String dataset, RepositoryConnection conn, int size) {
+		switch (dataset) {
+		case "subClassChain":
+			return subClassChain(conn, size);
+		case "sameAsClique":
+			return sameAsClique(conn, size);
+		case "derivedTypes":
+			return derivedTypes(conn, size);
+		default:
+			throw new IllegalArgumentException("Unknown data set " + dataset);
+		}
+	}
+
+	private static IRI iri(ValueFactory vf, String local) {
+		return vf.createIRI(NAMESPACE, local);
+	}
+}
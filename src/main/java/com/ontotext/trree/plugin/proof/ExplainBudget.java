@@ -0,0 +1,84 @@
+package com.ontotext.trree.plugin.proof;
+
+/**
+ * the wall-clock and premise limits of a single explain call, checked by report() for each solution
+ * so the inferencer is stopped once one of them is reached. An interrupted thread (a cancelled or
+ * timed out query) exceeds the budget as well, and so does a budget cancelled by the query thread when
+ * the inferencer runs in another one. In that case the interruption of the query thread is checked too
+ *
+ * the time is counted from the creation of the budget. When the inferencer runs in another thread that
+ * waits for the query between the batches of solutions, only the time it runs is counted: the budget is
+ * paused while it waits and resumed once it has the turn again
+ */
+class ExplainBudget {
+	private final long timeout;
+	private final long maxPremises;
+	private long premises = 0;
+	// the time spent before the last resume and when it was resumed, -1 while paused
+	private long spent = 0;
+	private long runningSince;
+	private volatile boolean cancelled = false;
+	// the thread of the query when the inferencer runs in another one, null otherwise
+	private volatile Thread queryThread = null;
+
+	/**
+	 * @param timeout in milliseconds, 0 means no limit
+	 * @param maxPremises 0 means no limit
+	 */
+	ExplainBudget(long timeout, long maxPremises) {
+		this.timeout = timeout;
+		this.maxPremises = maxPremises;
+		this.runningSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * stops counting the time, while the inferencer waits for the query
+	 */
+	void pause() {
+		if (runningSince >= 0) {
+			spent += System.currentTimeMillis() - runningSince;
+			runningSince = -1;
+		}
+	}
+
+	void resume() {
+		if (runningSince < 0)
+			runningSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * counts the premises of a reported solution
+	 */
+	void visit(int count) {
+		premises += count;
+	}
+
+	/**
+	 * stops the inferencer at its next solution, called when the query closes the iterator
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * the query thread whose interruption also exceeds the budget, set by that thread before it waits for the inferencer
+	 */
+	void watch(Thread thread) {
+		queryThread = thread;
+	}
+
+	boolean exceeded() {
+		Thread query = queryThread;
+		return cancelled || (maxPremises > 0 && premises >= maxPremises)
+				|| (timeout > 0 && elapsed() > timeout)
+				|| Thread.currentThread().isInterrupted()
+				|| (query != null && query.isInterrupted());
+	}
+
+	/**
+	 * the time counted so far in milliseconds
+	 */
+	long elapsed() {
+		return spent + ((runningSince >= 0) ? System.currentTimeMillis() - runningSince : 0);
+	}
+}
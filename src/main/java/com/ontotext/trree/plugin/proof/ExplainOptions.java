@@ -0,0 +1,113 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * settings of the explain predicates for a single request or a single pattern
+ *
+ * the defaults come from system properties. The option patterns with a variable subject bind it to an
+ * options node with a copy of the settings of the request, which an explain pattern takes as the last
+ * element of its list, so they apply to that pattern only whatever the order of evaluation, e.g.
+ *
+ *   ?opts pr:maxSolutions 10 .
+ *   ?opts pr:ruleFilter "rule_owl_invOf" .
+ *   ?x pr:explain (?s ?p ?o ?opts) .
+ *
+ * with pr:options as subject they change the settings of the request, used by the explain patterns
+ * evaluated after them
+ */
+class ExplainOptions {
+	// upper limit of the solutions reported per explained statement, 0 means no limit
+	static final long DEFAULT_MAX_SOLUTIONS = Long.getLong("graphdb.proof.maxSolutions", 0L);
+	// wall-clock limit in milliseconds of the inferencer for a statement, 0 means no limit
+	static final long DEFAULT_TIMEOUT = Long.getLong("graphdb.proof.timeout", 0L);
+	// upper limit of the premises of the reported solutions per statement, 0 means no limit
+	static final long DEFAULT_MAX_PREMISES = Long.getLong("graphdb.proof.maxPremises", 0L);
+	// whether the premises are mapped to the representatives of their owl:sameAs classes
+	static final boolean DEFAULT_COLLAPSE_SAME_AS = Boolean.getBoolean("graphdb.proof.collapseSameAs");
+	// whether solutions are streamed from the inferencer while the query reads them
+	static final boolean DEFAULT_INCREMENTAL = Boolean.getBoolean("graphdb.proof.incremental");
+	// how many solutions are computed ahead in incremental mode
+	static final int DEFAULT_BUFFER_SIZE = Integer.getInteger("graphdb.proof.bufferSize", 16);
+	// how long in milliseconds the inferencer waits in incremental mode for the query to read the solutions,
+	// when the request sets no timeout
+	static final long DEFAULT_IDLE_TIMEOUT = Long.getLong("graphdb.proof.idleTimeout", 60000L);
+	// how deep the implicit premises are expanded by pr:proofTree
+	static final int DEFAULT_MAX_DEPTH = Integer.getInteger("graphdb.proof.maxDepth", 8);
+	// upper limit of the statements expanded in a single proof tree
+	static final int DEFAULT_MAX_TREE_NODES = Integer.getInteger("graphdb.proof.maxTreeNodes", 10000);
+	// upper limit of the statements expanded by the pr:shortestProof search
+	static final int DEFAULT_SEARCH_NODES = Integer.getInteger("graphdb.proof.searchNodes", 10000);
+	// time limit in milliseconds of the pr:shortestProof search
+	static final long DEFAULT_SEARCH_TIMEOUT = Long.getLong("graphdb.proof.searchTimeout", 10000L);
+	// time limit in milliseconds of pr:buildIndex, the statements not explained by then are left to the inferencer
+	static final long DEFAULT_INDEX_TIMEOUT = Long.getLong("graphdb.proof.indexTimeout", 3600000L);
+	// the premises of a statement above which its solutions are moved out of the heap, 0 means never
+	static final int DEFAULT_SPILL_THRESHOLD = Integer.getInteger("graphdb.proof.spillThreshold", 1 << 16);
+
+	long maxSolutions = DEFAULT_MAX_SOLUTIONS;
+	long timeout = DEFAULT_TIMEOUT;
+	long maxPremises = DEFAULT_MAX_PREMISES;
+	boolean incremental = DEFAULT_INCREMENTAL;
+	boolean collapseSameAs = DEFAULT_COLLAPSE_SAME_AS;
+	int bufferSize = DEFAULT_BUFFER_SIZE;
+	long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	int maxDepth = DEFAULT_MAX_DEPTH;
+	int maxTreeNodes = DEFAULT_MAX_TREE_NODES;
+	int searchNodes = DEFAULT_SEARCH_NODES;
+	long searchTimeout = DEFAULT_SEARCH_TIMEOUT;
+	int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+	// names of the rules whose solutions are reported, null for all. Kept as names so a rule unknown to the
+	// ruleset matches nothing and is not registered in the RuleNames of the plugin
+	Set<String> ruleFilter = null;
+	// the graphs at least one premise of a solution must come from, null for any
+	long[] graphFilter = null;
+
+	/**
+	 * the settings of an options node, changed without affecting those they were copied from
+	 */
+	ExplainOptions copy() {
+		ExplainOptions copy = new ExplainOptions();
+		copy.maxSolutions = maxSolutions;
+		copy.timeout = timeout;
+		copy.maxPremises = maxPremises;
+		copy.incremental = incremental;
+		copy.collapseSameAs = collapseSameAs;
+		copy.bufferSize = bufferSize;
+		copy.idleTimeout = idleTimeout;
+		copy.maxDepth = maxDepth;
+		copy.maxTreeNodes = maxTreeNodes;
+		copy.searchNodes = searchNodes;
+		copy.searchTimeout = searchTimeout;
+		copy.spillThreshold = spillThreshold;
+		// both filters are replaced, not modified, when a rule or a graph is added
+		copy.ruleFilter = ruleFilter;
+		copy.graphFilter = graphFilter;
+		return copy;
+	}
+
+	void addRule(String ruleName) {
+		if (ruleFilter != null && ruleFilter.contains(ruleName))
+			return;
+		// the iterators created before keep the filter they were created with
+		Set<String> rules = (ruleFilter != null) ? new HashSet<String>(ruleFilter) : new HashSet<String>();
+		rules.add(ruleName);
+		ruleFilter = rules;
+	}
+
+	void addGraph(long graph) {
+		if (graphFilter == null) {
+			graphFilter = new long[] {graph};
+		} else {
+			for (long g : graphFilter) {
+				if (g == graph)
+					return;
+			}
+			long[] graphs = Arrays.copyOf(graphFilter, graphFilter.length + 1);
+			graphs[graphFilter.length] = graph;
+			graphFilter = graphs;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * repository wide cache of the solutions computed for a statement, shared by all queries
+ *
+ * the cache is bounded by the estimated memory of the entries and evicts the least recently
+ * used ones. Any change in the repository may change the derivations of any statement, so the
+ * whole cache is dropped when a transaction that has modified statements completes. An epoch
+ * counter makes sure that solutions computed against an older state are not stored afterwards
+ *
+ * the cached arenas are shared by the iterators and must not be modified
+ */
+class ExplanationCache {
+	private final long maxMemory;
+	private final LinkedHashMap<TripleKey, PremiseArena> entries = new LinkedHashMap<TripleKey, PremiseArena>(256, 0.75f, true);
+	private long memory = 0;
+	// incremented each time the cached solutions may become invalid
+	private volatile long epoch = 0;
+	// set while a transaction has modified statements that are not committed yet
+	private volatile boolean modified = false;
+
+	ExplanationCache(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * the memory bound in bytes set for the repository, 0 disables the cache. Read when the plugin is created
+	 */
+	static long defaultMaxMemory() {
+		return Long.getLong("graphdb.proof.cacheMemory", 0L);
+	}
+
+	boolean isEnabled() {
+		// the queries within a modifying transaction see its uncommitted statements
+		return maxMemory > 0 && !modified;
+	}
+
+	long epoch() {
+		return epoch;
+	}
+
+	synchronized PremiseArena get(TripleKey key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * stores the solutions if nothing has changed since the epoch at which they were computed
+	 */
+	synchronized void put(TripleKey key, PremiseArena entry, long computedAt) {
+		if (computedAt != epoch || modified || entry.memory() > maxMemory)
+			return;
+		PremiseArena old = entries.put(key, entry);
+		if (old != null)
+			memory -= old.memory();
+		memory += entry.memory();
+		Iterator<Map.Entry<TripleKey, PremiseArena>> iter = entries.entrySet().iterator();
+		while (memory > maxMemory && iter.hasNext()) {
+			memory -= iter.next().getValue().memory();
+			iter.remove();
+		}
+	}
+
+	/**
+	 * called when a statement is added or removed, until the transaction completes nothing is cached
+	 */
+	void statementsModified() {
+		if (!modified) {
+			synchronized (this) {
+				modified = true;
+				epoch++;
+			}
+		}
+	}
+
+	/**
+	 * called when a transaction completes or is aborted
+	 */
+	synchronized void transactionFinished() {
+		if (modified) {
+			entries.clear();
+			memory = 0;
+			epoch++;
+			modified = false;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+
+/**
+ * open-addressing map from entity ids to objects, so the lookups by id do not box the keys
+ *
+ * 0 is not a valid entity id and marks the free slots
+ *
+ * @param <V> the type of the values
+ */
+class LongObjectMap<V> {
+	private long[] keys = new long[16];
+	private Object[] values = new Object[16];
+	private int size = 0;
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key)
+				return (V)values[i];
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	void put(long key, V value) {
+		if (key == 0)
+			throw new IllegalArgumentException("0 is not a valid key");
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			resize();
+	}
+
+	/**
+	 * removes the key if it is mapped to that value
+	 */
+	void remove(long key, V value) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				if (values[i] == value)
+					delete(i);
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * frees the slot shifting back the entries after it (linear probing)
+	 */
+	private void delete(int i) {
+		int mask = keys.length - 1;
+		keys[i] = 0;
+		values[i] = null;
+		size--;
+		int j = (i + 1) & mask;
+		while (keys[j] != 0) {
+			int home = hash(keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				keys[j] = 0;
+				values[j] = null;
+				i = j;
+			}
+			j = (j + 1) & mask;
+		}
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == 0)
+				continue;
+			int i = hash(oldKeys[j]) & mask;
+			while (keys[i] != 0)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,63 @@
+package com.ontotext.trree.plugin.proof;
+
+/**
+ * the number of rows the explain predicates returned so far, by predicate of the explained statements,
+ * used by estimate() instead of fixed costs
+ *
+ * for each predicate and kind of pattern the plugin keeps the number of observations and the sum of
+ * their rows. The observations of all predicates are also kept under ANY and serve as the estimate for
+ * a predicate that has not been explained yet (for SCAN, ANY holds the scans without a predicate filter).
+ * The counts are halved when they grow large so the averages follow the changes in the data
+ */
+class PredicateStatistics {
+	// rows of pr:explain, i.e. premises of all solutions of a statement
+	static final int EXPLAIN = 0;
+	// rows of pr:proofTree
+	static final int TREE = 1;
+	// statements explained by a complete pr:explainAll scan
+	static final int SCAN = 2;
+	private static final int KINDS = 3;
+
+	// the key under which the observations of all predicates are kept
+	static final long ANY = Long.MIN_VALUE;
+	// weight of the default estimate against the observed rows
+	private static final int PRIOR_WEIGHT = 1;
+	private static final long MAX_OBSERVATIONS = 1 << 16;
+
+	// count and sum of the rows for each kind by predicate
+	private final LongObjectMap<long[]> observed = new LongObjectMap<long[]>();
+
+	synchronized void record(int kind, long predicate, long rows) {
+		add(kind, predicate, rows);
+		// a scan without a filter is kept under ANY, so an unknown predicate is not estimated lower than it
+		if (predicate != ANY && kind != SCAN)
+			add(kind, ANY, rows);
+	}
+
+	/**
+	 * the average rows observed for the predicate, or for any predicate if it has not been seen yet,
+	 * biased toward the default while there are few observations
+	 */
+	synchronized double average(int kind, long predicate, double prior) {
+		long[] counts = observed.get(predicate);
+		if ((counts == null || counts[kind * 2] == 0) && predicate != ANY)
+			counts = observed.get(ANY);
+		if (counts == null || counts[kind * 2] == 0)
+			return prior;
+		return (counts[kind * 2 + 1] + prior * PRIOR_WEIGHT) / (counts[kind * 2] + PRIOR_WEIGHT);
+	}
+
+	private void add(int kind, long predicate, long rows) {
+		long[] counts = observed.get(predicate);
+		if (counts == null) {
+			counts = new long[KINDS * 2];
+			observed.put(predicate, counts);
+		}
+		if (counts[kind * 2] >= MAX_OBSERVATIONS) {
+			counts[kind * 2] /= 2;
+			counts[kind * 2 + 1] /= 2;
+		}
+		counts[kind * 2]++;
+		counts[kind * 2 + 1] += rows;
+	}
+}
@@ -0,0 +1,201 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+
+/**
+ * the solutions of an explained statement packed in a few primitive arrays
+ *
+ * all premises are kept one after another in a single long[], PREMISE_WIDTH longs each
+ * (subject, predicate, object, context and status). For each solution the arena keeps
+ * the index of its rule and the index of its first premise, so the solutions and their
+ * premises are read by index without any per-premise objects
+ *
+ * once the premises exceed the spill threshold they are moved out of the heap to a PremiseSpill,
+ * so a statement with a huge number of derivations does not hold the heap for the whole query.
+ * The owner of such an arena must call release() when it is done with it
+ */
+class PremiseArena {
+	static final int PREMISE_WIDTH = SolutionKeySet.PREMISE_WIDTH;
+
+	private long[] premises;
+	private int premiseCount = 0;
+	private int[] rules;
+	// index of the first premise of each solution, starts[solutionCount] == premiseCount
+	private int[] starts;
+	private int solutionCount = 0;
+	// the number of premises above which they are spilled, 0 means never
+	private final int spillThreshold;
+	// the premises and solutions once spilled, the arrays are not used then
+	private PremiseSpill spill = null;
+
+	PremiseArena() {
+		this(0);
+	}
+
+	PremiseArena(int spillThreshold) {
+		this(8, 32, spillThreshold);
+	}
+
+	private PremiseArena(int solutions, int premises, int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+		this.rules = new int[Math.max(1, solutions)];
+		this.starts = new int[Math.max(1, solutions) + 1];
+		this.premises = new long[Math.max(1, premises) * PREMISE_WIDTH];
+	}
+
+	/**
+	 * appends a solution with count premises packed in the source array
+	 */
+	void add(int rule, long[] source, int offset, int count) {
+		if (spill == null && spillThreshold > 0 && premiseCount + count > spillThreshold)
+			spill();
+		if (spill != null) {
+			spill.addSolution(rule, premiseCount);
+			for (int i = 0; i < count; i++) {
+				int at = offset + i * PREMISE_WIDTH;
+				spill.addPremise(source[at], source[at + 1], source[at + 2], source[at + 3], (int)source[at + 4]);
+			}
+			premiseCount += count;
+			solutionCount++;
+			return;
+		}
+		if (solutionCount == rules.length) {
+			rules = Arrays.copyOf(rules, rules.length * 2);
+			starts = Arrays.copyOf(starts, rules.length + 1);
+		}
+		int need = (premiseCount + count) * PREMISE_WIDTH;
+		if (need > premises.length)
+			premises = Arrays.copyOf(premises, Math.max(premises.length * 2, need));
+		System.arraycopy(source, offset, premises, premiseCount * PREMISE_WIDTH, count * PREMISE_WIDTH);
+		rules[solutionCount] = rule;
+		starts[solutionCount] = premiseCount;
+		premiseCount += count;
+		solutionCount++;
+		starts[solutionCount] = premiseCount;
+	}
+
+	/**
+	 * appends a solution with a single premise
+	 */
+	void add(int rule, long subj, long pred, long obj, long context, int status) {
+		long[] one = new long[] {subj, pred, obj, context, status};
+		add(rule, one, 0, 1);
+	}
+
+	/**
+	 * moves the premises and solutions to the off-heap buffers
+	 */
+	private void spill() {
+		spill = new PremiseSpill();
+		for (int s = 0; s < solutionCount; s++)
+			spill.addSolution(rules[s], starts[s]);
+		for (int p = 0; p < premiseCount; p++) {
+			int at = p * PREMISE_WIDTH;
+			spill.addPremise(premises[at], premises[at + 1], premises[at + 2], premises[at + 3], (int)premises[at + 4]);
+		}
+		rules = new int[1];
+		starts = new int[2];
+		premises = new long[PREMISE_WIDTH];
+	}
+
+	boolean isSpilled() {
+		return spill != null;
+	}
+
+	/**
+	 * returns the off-heap buffers, the arena is empty afterwards
+	 */
+	void release() {
+		if (spill != null) {
+			spill.release();
+			spill = null;
+		}
+		clear();
+	}
+
+	void clear() {
+		premiseCount = 0;
+		solutionCount = 0;
+		starts[0] = 0;
+		if (spill != null)
+			spill.clear();
+	}
+
+	int solutionCount() {
+		return solutionCount;
+	}
+
+	int premiseCount() {
+		return premiseCount;
+	}
+
+	int rule(int solution) {
+		return (spill != null) ? spill.rule(solution) : rules[solution];
+	}
+
+	int start(int solution) {
+		return (spill != null) ? spill.start(solution) : starts[solution];
+	}
+
+	int end(int solution) {
+		if (spill != null)
+			return (solution + 1 < solutionCount) ? spill.start(solution + 1) : premiseCount;
+		return starts[solution + 1];
+	}
+
+	/**
+	 * @param field 0 to 4 for subject, predicate, object, context and status
+	 */
+	long get(int premise, int field) {
+		if (spill != null)
+			return spill.get(premise, field);
+		return premises[premise * PREMISE_WIDTH + field];
+	}
+
+	/**
+	 * a compact copy limited to the first solutions, used when the arena is shared. The copy is
+	 * on the heap, the spilled arenas are not shared
+	 */
+	PremiseArena copy(int solutions) {
+		solutions = Math.min(solutions, solutionCount);
+		if (spill != null) {
+			PremiseArena copy = new PremiseArena();
+			long[] one = new long[PREMISE_WIDTH];
+			for (int s = 0; s < solutions; s++) {
+				int start = start(s), end = end(s);
+				long[] packed = (end - start > 1) ? new long[(end - start) * PREMISE_WIDTH] : one;
+				for (int p = start; p < end; p++) {
+					for (int f = 0; f < PREMISE_WIDTH; f++)
+						packed[(p - start) * PREMISE_WIDTH + f] = get(p, f);
+				}
+				copy.add(rule(s), packed, 0, end - start);
+			}
+			return copy;
+		}
+		int count = starts[solutions];
+		PremiseArena copy = new PremiseArena(solutions, count, 0);
+		System.arraycopy(premises, 0, copy.premises, 0, count * PREMISE_WIDTH);
+		System.arraycopy(rules, 0, copy.rules, 0, solutions);
+		System.arraycopy(starts, 0, copy.starts, 0, solutions + 1);
+		copy.premiseCount = count;
+		copy.solutionCount = solutions;
+		return copy;
+	}
+
+	long memory() {
+		return 64 + 4L * rules.length + 4L * starts.length + 8L * premises.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int s = 0; s < solutionCount; s++) {
+			builder.append("rule:").append(rule(s)).append("\n");
+			for (int p = start(s); p < end(s); p++) {
+				builder.append(get(p, 0)).append(",").append(get(p, 1)).append(",");
+				builder.append(get(p, 2)).append(",").append(get(p, 3)).append("\n");
+			}
+		}
+		return builder.toString();
+	}
+}
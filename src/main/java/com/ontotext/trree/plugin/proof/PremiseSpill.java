@@ -0,0 +1,174 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * the premises and solutions of a PremiseArena kept out of the heap, in direct buffers of a fixed size
+ *
+ * a premise takes PREMISE_BYTES (subject, predicate, object and context as longs, the status as an int)
+ * and a solution SOLUTION_BYTES (the rule index and the index of its first premise), so both are read
+ * back by offset. The buffers come from a pool shared by the repository and are returned to it by
+ * release(), a direct buffer is expensive to allocate and is freed only by the garbage collector
+ */
+class PremiseSpill {
+	static final int PREMISE_BYTES = 4 * 8 + 4;
+	static final int SOLUTION_BYTES = 2 * 4;
+	static final int CHUNK_BYTES = 1 << 20;
+	static final int PREMISES_PER_CHUNK = CHUNK_BYTES / PREMISE_BYTES;
+	static final int SOLUTIONS_PER_CHUNK = CHUNK_BYTES / SOLUTION_BYTES;
+	// how many free buffers the pool keeps, the others are left to the garbage collector
+	static final int DEFAULT_POOL_CHUNKS = Integer.getInteger("graphdb.proof.spillPoolChunks", 64);
+
+	static final ChunkPool POOL = new ChunkPool(DEFAULT_POOL_CHUNKS);
+
+	private ByteBuffer[] premiseChunks = new ByteBuffer[4];
+	private ByteBuffer[] solutionChunks = new ByteBuffer[1];
+	private int premiseCount = 0;
+	private int solutionCount = 0;
+
+	void addPremise(long subj, long pred, long obj, long context, int status) {
+		int chunk = premiseCount / PREMISES_PER_CHUNK;
+		if (chunk == premiseChunks.length)
+			premiseChunks = Arrays.copyOf(premiseChunks, chunk * 2);
+		if (premiseChunks[chunk] == null)
+			premiseChunks[chunk] = POOL.take();
+		int offset = (premiseCount % PREMISES_PER_CHUNK) * PREMISE_BYTES;
+		ByteBuffer buffer = premiseChunks[chunk];
+		buffer.putLong(offset, subj);
+		buffer.putLong(offset + 8, pred);
+		buffer.putLong(offset + 16, obj);
+		buffer.putLong(offset + 24, context);
+		buffer.putInt(offset + 32, status);
+		premiseCount++;
+	}
+
+	void addSolution(int rule, int start) {
+		int chunk = solutionCount / SOLUTIONS_PER_CHUNK;
+		if (chunk == solutionChunks.length)
+			solutionChunks = Arrays.copyOf(solutionChunks, chunk * 2);
+		if (solutionChunks[chunk] == null)
+			solutionChunks[chunk] = POOL.take();
+		int offset = (solutionCount % SOLUTIONS_PER_CHUNK) * SOLUTION_BYTES;
+		solutionChunks[chunk].putInt(offset, rule);
+		solutionChunks[chunk].putInt(offset + 4, start);
+		solutionCount++;
+	}
+
+	/**
+	 * @param field 0 to 4 for subject, predicate, object, context and status
+	 */
+	long get(int premise, int field) {
+		ByteBuffer buffer = premiseChunks[premise / PREMISES_PER_CHUNK];
+		int offset = (premise % PREMISES_PER_CHUNK) * PREMISE_BYTES;
+		return (field < 4) ? buffer.getLong(offset + field * 8) : buffer.getInt(offset + 32);
+	}
+
+	int rule(int solution) {
+		return solutionChunks[solution / SOLUTIONS_PER_CHUNK].getInt((solution % SOLUTIONS_PER_CHUNK) * SOLUTION_BYTES);
+	}
+
+	int start(int solution) {
+		return solutionChunks[solution / SOLUTIONS_PER_CHUNK].getInt((solution % SOLUTIONS_PER_CHUNK) * SOLUTION_BYTES + 4);
+	}
+
+	/**
+	 * drops the content, the buffers are kept for the next solutions
+	 */
+	void clear() {
+		premiseCount = 0;
+		solutionCount = 0;
+	}
+
+	/**
+	 * returns the buffers to the pool, the spill must not be used afterwards
+	 */
+	void release() {
+		for (int i = 0; i < premiseChunks.length; i++) {
+			if (premiseChunks[i] != null)
+				POOL.give(premiseChunks[i]);
+			premiseChunks[i] = null;
+		}
+		for (int i = 0; i < solutionChunks.length; i++) {
+			if (solutionChunks[i] != null)
+				POOL.give(solutionChunks[i]);
+			solutionChunks[i] = null;
+		}
+		clear();
+	}
+
+	/**
+	 * a growable array of longs in buffers from the pool, for the keys of the spilled solutions
+	 */
+	static class Longs {
+		static final int LONGS_PER_CHUNK = CHUNK_BYTES / 8;
+
+		private ByteBuffer[] chunks = new ByteBuffer[4];
+
+		long get(long index) {
+			return chunks[(int)(index / LONGS_PER_CHUNK)].getLong((int)(index % LONGS_PER_CHUNK) * 8);
+		}
+
+		void set(long index, long value) {
+			chunk((int)(index / LONGS_PER_CHUNK)).putLong((int)(index % LONGS_PER_CHUNK) * 8, value);
+		}
+
+		/**
+		 * sets the first count longs to 0, a buffer from the pool keeps the content of its previous use
+		 */
+		void zero(long count) {
+			for (long i = 0; i < count; i += LONGS_PER_CHUNK) {
+				ByteBuffer buffer = chunk((int)(i / LONGS_PER_CHUNK));
+				int end = (int)Math.min(LONGS_PER_CHUNK, count - i) * 8;
+				for (int b = 0; b < end; b += 8)
+					buffer.putLong(b, 0);
+			}
+		}
+
+		private ByteBuffer chunk(int chunk) {
+			if (chunk >= chunks.length)
+				chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, chunks.length * 2));
+			if (chunks[chunk] == null)
+				chunks[chunk] = POOL.take();
+			return chunks[chunk];
+		}
+
+		/**
+		 * returns the buffers to the pool, the array must not be used afterwards
+		 */
+		void release() {
+			for (int i = 0; i < chunks.length; i++) {
+				if (chunks[i] != null)
+					POOL.give(chunks[i]);
+				chunks[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * the free direct buffers, used by the query threads and the producers of incremental explains
+	 */
+	static class ChunkPool {
+		private final int capacity;
+		private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+		ChunkPool(int capacity) {
+			this.capacity = capacity;
+		}
+
+		synchronized ByteBuffer take() {
+			ByteBuffer buffer = free.poll();
+			return (buffer != null) ? buffer : ByteBuffer.allocateDirect(CHUNK_BYTES);
+		}
+
+		synchronized void give(ByteBuffer buffer) {
+			if (free.size() < capacity)
+				free.push(buffer);
+		}
+
+		synchronized int size() {
+			return free.size();
+		}
+	}
+}
@@ -0,0 +1,671 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+
+import org.eclipse.rdf4j.model.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * the solutions of all implicit statements written to the data directory of the plugin and read back
+ * through a memory-mapped view, so a read-only repository explains its statements without the inferencer
+ *
+ * the file holds a header, the solutions of each statement one after another, the rule names and at the
+ * end the statements sorted by (s,p,o), 32 bytes each with the offset of their solutions, looked up by a
+ * binary search. A statement has a solution count followed by the rule, premise count and premises of each
+ * solution, laid out as in PremiseSpill. The statements are sorted in runs of a bounded size written to
+ * temporary files and merged at the end, so the writer does not hold them all on the heap.
+ *
+ * the index is marked stale by a marker file once a transaction that has modified statements commits, from
+ * then on the statements are explained by the inferencer again until the index is rebuilt. The header also
+ * holds the size of the entity pool and a checksum of the values of a sample of the statements when it was
+ * written, an index that does not match the repository it is opened with (e.g. restored from another
+ * backup) is treated as stale as well
+ *
+ * the lookups hold a read lock on the mapping, so a view is unmapped only once no query reads it: when it
+ * is replaced, marked stale or closed. Otherwise the old file stays mapped until the buffers are collected,
+ * which keeps its space on disk and on some systems (Windows) does not let it be replaced
+ */
+class ProofIndex {
+	private static final Logger logger = LoggerFactory.getLogger(ProofIndex.class);
+
+	static final String FILE_NAME = "proof-index.bin";
+	static final String STALE_FILE_NAME = "proof-index.stale";
+	static final int MAGIC = 0x50524958;
+	static final int VERSION = 2;
+	// magic, version, statement count, offset of the statements, offset of the rule names, rule name count,
+	// entity pool size and checksum of the sampled statements
+	static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 8 + 4 + 8 + 8;
+	static final int ENTRY_BYTES = 4 * 8;
+	// the number of statements the checksum is computed over
+	static final int FINGERPRINT_SAMPLES = 16;
+	// the statements sorted on the heap before they are written as a run
+	static final int RUN_ENTRIES = Integer.getInteger("graphdb.proof.indexRunSize", 1 << 18);
+	// the file is mapped in segments of that size
+	static final int SEGMENT_BYTES = 1 << 30;
+
+	private final File dir;
+	// the mapped index, null if there is none or it is stale
+	private volatile View view = null;
+	// set while a transaction has modified statements, its queries see the uncommitted statements
+	private volatile boolean modified = false;
+	// held by the lookups while they read the view, the write lock by unmap()
+	private final ReentrantReadWriteLock mapping = new ReentrantReadWriteLock();
+
+	ProofIndex(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * maps the index written before, unless it is stale or does not match the entities of the repository
+	 * @param entityCount the size of the entity pool
+	 * @param values the values of the entities by id
+	 */
+	synchronized void open(long entityCount, LongFunction<Value> values) {
+		if (dir == null)
+			return;
+		File file = new File(dir, FILE_NAME);
+		if (!file.exists() || new File(dir, STALE_FILE_NAME).exists())
+			return;
+		View opened;
+		try {
+			opened = new View(file);
+		} catch (IOException e) {
+			logger.warn("Could not open the proof index " + file, e);
+			return;
+		}
+		if (entityCount < opened.entityCount || opened.fingerprint(values) != opened.checksum) {
+			logger.warn("The proof index does not match the repository, it is not used until it is rebuilt");
+			opened.unmap();
+			markStale();
+			return;
+		}
+		view = opened;
+		logger.info("Opened the proof index with {} statements", view.count);
+	}
+
+	synchronized void close() {
+		unmap();
+	}
+
+	boolean isAvailable() {
+		return view != null && !modified;
+	}
+
+	long size() {
+		View v = view;
+		return (v != null) ? v.count : 0;
+	}
+
+	/**
+	 * @return the solutions of the statement on the heap, null if it is not in the index
+	 */
+	PremiseArena get(long subj, long pred, long obj, RuleNames ruleNames) {
+		mapping.readLock().lock();
+		try {
+			View v = view;
+			if (v == null || modified)
+				return null;
+			return v.get(subj, pred, obj, ruleNames);
+		} finally {
+			mapping.readLock().unlock();
+		}
+	}
+
+	/**
+	 * called when a statement is added or removed, the index is not used until the transaction completes
+	 */
+	void statementsModified() {
+		modified = true;
+	}
+
+	/**
+	 * called when a transaction completes or is aborted, a committed modification makes the index stale
+	 */
+	void transactionFinished(boolean committed) {
+		if (modified && committed)
+			markStale();
+		modified = false;
+	}
+
+	synchronized void markStale() {
+		if (dir == null || !new File(dir, FILE_NAME).exists())
+			return;
+		unmap();
+		try {
+			new File(dir, STALE_FILE_NAME).createNewFile();
+		} catch (IOException e) {
+			logger.warn("Could not mark the proof index as stale", e);
+		}
+	}
+
+	/**
+	 * a new index, written to a temporary file until it is installed
+	 */
+	Writer writer() throws IOException {
+		if (dir == null)
+			throw new IOException("The plugin has no data directory");
+		return new Writer(new File(dir, FILE_NAME + ".tmp"));
+	}
+
+	/**
+	 * replaces the index with the one written, maps it unless the repository has changed in the meantime
+	 */
+	synchronized void install(Writer writer, boolean current) throws IOException {
+		File file = new File(dir, FILE_NAME);
+		// the old file is unmapped before it is replaced
+		unmap();
+		try {
+			Files.move(writer.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(writer.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		File stale = new File(dir, STALE_FILE_NAME);
+		if (!current) {
+			stale.createNewFile();
+			return;
+		}
+		Files.deleteIfExists(stale.toPath());
+		view = new View(file);
+	}
+
+	/**
+	 * drops the view and unmaps its segments once the lookups that read it are done
+	 */
+	private void unmap() {
+		mapping.writeLock().lock();
+		try {
+			View v = view;
+			view = null;
+			if (v != null)
+				v.unmap();
+		} finally {
+			mapping.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * writes the solutions of the statements in any order, the statements are sorted by finish()
+	 */
+	static class Writer {
+		final File file;
+		private final DataOutputStream out;
+		private long position = HEADER_BYTES;
+		// subject, predicate, object and offset of the solutions of the statements of the current run
+		private final long[] entries;
+		private int count = 0;
+		// the sorted runs written so far
+		private final List<File> runs = new ArrayList<File>();
+
+		Writer(File file) throws IOException {
+			this(file, RUN_ENTRIES);
+		}
+
+		Writer(File file, int runEntries) throws IOException {
+			this.file = file;
+			this.entries = new long[Math.max(1, runEntries) * 4];
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.write(new byte[HEADER_BYTES]);
+		}
+
+		void add(long subj, long pred, long obj, PremiseArena solutions) throws IOException {
+			if (count * 4 == entries.length)
+				writeRun();
+			entries[count * 4] = subj;
+			entries[count * 4 + 1] = pred;
+			entries[count * 4 + 2] = obj;
+			entries[count * 4 + 3] = position;
+			count++;
+			out.writeInt(solutions.solutionCount());
+			position += 4;
+			for (int s = 0; s < solutions.solutionCount(); s++) {
+				out.writeInt(solutions.rule(s));
+				out.writeInt(solutions.end(s) - solutions.start(s));
+				position += 8;
+				for (int p = solutions.start(s); p < solutions.end(s); p++) {
+					out.writeLong(solutions.get(p, 0));
+					out.writeLong(solutions.get(p, 1));
+					out.writeLong(solutions.get(p, 2));
+					out.writeLong(solutions.get(p, 3));
+					out.writeInt((int)solutions.get(p, 4));
+					position += PremiseSpill.PREMISE_BYTES;
+				}
+			}
+		}
+
+		/**
+		 * writes the rule names and the sorted statements and completes the header
+		 * @param entityCount the size of the entity pool
+		 * @param values the values of the entities by id, for the checksum
+		 * @return the number of statements
+		 */
+		long finish(RuleNames ruleNames, long entityCount, LongFunction<Value> values) throws IOException {
+			long namesOffset = position;
+			int names = ruleNames.size();
+			for (int i = 0; i < names; i++) {
+				byte[] bytes = ruleNames.name(i).getBytes(StandardCharsets.UTF_8);
+				out.writeShort(bytes.length);
+				out.write(bytes);
+				position += 2 + bytes.length;
+			}
+			long entriesOffset = position;
+			long written;
+			if (runs.isEmpty()) {
+				sort(0, count - 1);
+				written = 0;
+				long lastSubj = 0, lastPred = 0, lastObj = 0;
+				for (int i = 0; i < count; i++) {
+					// the same statement may be found in several contexts
+					if (written > 0 && entries[i * 4] == lastSubj && entries[i * 4 + 1] == lastPred && entries[i * 4 + 2] == lastObj)
+						continue;
+					for (int f = 0; f < 4; f++)
+						out.writeLong(entries[i * 4 + f]);
+					lastSubj = entries[i * 4];
+					lastPred = entries[i * 4 + 1];
+					lastObj = entries[i * 4 + 2];
+					written++;
+				}
+			} else {
+				writeRun();
+				written = merge();
+			}
+			out.close();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				long checksum = 0;
+				for (int i = 0; i < FINGERPRINT_SAMPLES && i < written; i++) {
+					raf.seek(entriesOffset + sample(i, written) * ENTRY_BYTES);
+					checksum = checksum * 31 + valueHash(values, raf.readLong(), raf.readLong(), raf.readLong());
+				}
+				raf.seek(0);
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeLong(written);
+				raf.writeLong(entriesOffset);
+				raf.writeLong(namesOffset);
+				raf.writeInt(names);
+				raf.writeLong(entityCount);
+				raf.writeLong(checksum);
+			}
+			return written;
+		}
+
+		void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+			deleteRuns();
+			file.delete();
+		}
+
+		/**
+		 * sorts the statements of the current run and writes them to a run file
+		 */
+		private void writeRun() throws IOException {
+			sort(0, count - 1);
+			File run = new File(file.getPath() + ".run" + runs.size());
+			runs.add(run);
+			try (DataOutputStream runOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+				for (int i = 0; i < count * 4; i++)
+					runOut.writeLong(entries[i]);
+			}
+			count = 0;
+		}
+
+		/**
+		 * writes the statements of all runs in order, each statement once
+		 * @return the number of statements
+		 */
+		private long merge() throws IOException {
+			PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size());
+			try {
+				for (File run : runs) {
+					Run r = new Run(run);
+					if (r.next())
+						queue.add(r);
+					else
+						r.close();
+				}
+				long written = 0;
+				long lastSubj = 0, lastPred = 0, lastObj = 0;
+				while (!queue.isEmpty()) {
+					Run r = queue.poll();
+					if (written == 0 || r.entry[0] != lastSubj || r.entry[1] != lastPred || r.entry[2] != lastObj) {
+						for (int f = 0; f < 4; f++)
+							out.writeLong(r.entry[f]);
+						lastSubj = r.entry[0];
+						lastPred = r.entry[1];
+						lastObj = r.entry[2];
+						written++;
+					}
+					if (r.next())
+						queue.add(r);
+					else
+						r.close();
+				}
+				return written;
+			} finally {
+				for (Run r : queue)
+					r.close();
+				deleteRuns();
+			}
+		}
+
+		private void deleteRuns() {
+			for (File run : runs)
+				run.delete();
+			runs.clear();
+		}
+
+		private int compare(int a, int b) {
+			for (int f = 0; f < 3; f++) {
+				int c = Long.compare(entries[a * 4 + f], entries[b * 4 + f]);
+				if (c != 0)
+					return c;
+			}
+			return 0;
+		}
+
+		private void swap(int a, int b) {
+			for (int f = 0; f < 4; f++) {
+				long t = entries[a * 4 + f];
+				entries[a * 4 + f] = entries[b * 4 + f];
+				entries[b * 4 + f] = t;
+			}
+		}
+
+		private void sort(int lo, int hi) {
+			while (lo < hi) {
+				swap(lo + (hi - lo) / 2, hi);
+				int store = lo;
+				for (int i = lo; i < hi; i++) {
+					if (compare(i, hi) < 0)
+						swap(i, store++);
+				}
+				swap(store, hi);
+				// recurse into the smaller part so the stack stays shallow
+				if (store - lo < hi - store) {
+					sort(lo, store - 1);
+					lo = store + 1;
+				} else {
+					sort(store + 1, hi);
+					hi = store - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * the reader of a sorted run, ordered by its current statement
+	 */
+	private static class Run implements Comparable<Run> {
+		private final DataInputStream in;
+		private long remaining;
+		final long[] entry = new long[4];
+
+		Run(File file) throws IOException {
+			remaining = file.length() / ENTRY_BYTES;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0)
+				return false;
+			for (int f = 0; f < 4; f++)
+				entry[f] = in.readLong();
+			remaining--;
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			for (int f = 0; f < 3; f++) {
+				int c = Long.compare(entry[f], other.entry[f]);
+				if (c != 0)
+					return c;
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * the position of a sampled statement, spread evenly over the index
+	 */
+	static long sample(int i, long count) {
+		return (count <= FINGERPRINT_SAMPLES) ? i : i * (count - 1) / (FINGERPRINT_SAMPLES - 1);
+	}
+
+	static long valueHash(LongFunction<Value> values, long subj, long pred, long obj) {
+		long hash = 0;
+		for (long id : new long[] {subj, pred, obj}) {
+			Value value = values.apply(id);
+			hash = hash * 31 + ((value != null) ? value.stringValue().hashCode() : 0);
+		}
+		return hash;
+	}
+
+	/**
+	 * the read-only mapping of an index file
+	 */
+	static class View {
+		final long count;
+		// the size of the entity pool and the checksum of the sampled statements when the index was written
+		final long entityCount;
+		final long checksum;
+		private final long entriesOffset;
+		private final MappedByteBuffer[] segments;
+		// the names of the rules by the index they had when the file was written
+		private final String[] ruleNames;
+		// the current index of each of these rules, resolved on first use
+		private volatile int[] ruleIndices = null;
+
+		View(File file) throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+				long length = channel.size();
+				segments = new MappedByteBuffer[(int)((length + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+				for (int i = 0; i < segments.length; i++) {
+					long start = (long)i * SEGMENT_BYTES;
+					segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES, length - start));
+				}
+			}
+			if (segments.length == 0 || getInt(0) != MAGIC || getInt(4) != VERSION)
+				throw new IOException("Not a proof index or an unsupported version: " + file);
+			count = getLong(8);
+			entriesOffset = getLong(16);
+			long namesOffset = getLong(24);
+			ruleNames = new String[getInt(32)];
+			entityCount = getLong(36);
+			checksum = getLong(44);
+			long position = namesOffset;
+			for (int i = 0; i < ruleNames.length; i++) {
+				int length = ((getByte(position) & 0xff) << 8) | (getByte(position + 1) & 0xff);
+				byte[] bytes = new byte[length];
+				for (int b = 0; b < length; b++)
+					bytes[b] = getByte(position + 2 + b);
+				ruleNames[i] = new String(bytes, StandardCharsets.UTF_8);
+				position += 2 + length;
+			}
+		}
+
+		/**
+		 * the checksum of the sampled statements with the current values of their entities
+		 */
+		long fingerprint(LongFunction<Value> values) {
+			long hash = 0;
+			for (int i = 0; i < FINGERPRINT_SAMPLES && i < count; i++) {
+				long at = entriesOffset + sample(i, count) * ENTRY_BYTES;
+				hash = hash * 31 + valueHash(values, getLong(at), getLong(at + 8), getLong(at + 16));
+			}
+			return hash;
+		}
+
+		PremiseArena get(long subj, long pred, long obj, RuleNames names) {
+			long lo = 0, hi = count - 1;
+			while (lo <= hi) {
+				long mid = (lo + hi) >>> 1;
+				long at = entriesOffset + mid * ENTRY_BYTES;
+				int c = Long.compare(getLong(at), subj);
+				if (c == 0)
+					c = Long.compare(getLong(at + 8), pred);
+				if (c == 0)
+					c = Long.compare(getLong(at + 16), obj);
+				if (c < 0)
+					lo = mid + 1;
+				else if (c > 0)
+					hi = mid - 1;
+				else
+					return read(getLong(at + 24), names);
+			}
+			return null;
+		}
+
+		private PremiseArena read(long position, RuleNames names) {
+			int[] rules = ruleIndices(names);
+			PremiseArena solutions = new PremiseArena();
+			int solutionCount = getInt(position);
+			position += 4;
+			long[] packed = new long[4 * PremiseArena.PREMISE_WIDTH];
+			for (int s = 0; s < solutionCount; s++) {
+				int rule = rules[getInt(position)];
+				int premises = getInt(position + 4);
+				position += 8;
+				if (premises * PremiseArena.PREMISE_WIDTH > packed.length)
+					packed = new long[premises * PremiseArena.PREMISE_WIDTH];
+				for (int p = 0; p < premises; p++) {
+					int offset = p * PremiseArena.PREMISE_WIDTH;
+					packed[offset] = getLong(position);
+					packed[offset + 1] = getLong(position + 8);
+					packed[offset + 2] = getLong(position + 16);
+					packed[offset + 3] = getLong(position + 24);
+					packed[offset + 4] = getInt(position + 32);
+					position += PremiseSpill.PREMISE_BYTES;
+				}
+				solutions.add(rule, packed, 0, premises);
+			}
+			return solutions;
+		}
+
+		/**
+		 * releases the mapped segments, the view must not be read afterwards
+		 */
+		void unmap() {
+			for (int i = 0; i < segments.length; i++) {
+				if (segments[i] != null)
+					Unmapper.unmap(segments[i]);
+				segments[i] = null;
+			}
+		}
+
+		private int[] ruleIndices(RuleNames names) {
+			int[] indices = ruleIndices;
+			if (indices == null) {
+				indices = new int[ruleNames.length];
+				for (int i = 0; i < indices.length; i++)
+					indices[i] = names.indexOf(ruleNames[i]);
+				ruleIndices = indices;
+			}
+			return indices;
+		}
+
+		private byte getByte(long position) {
+			return segments[(int)(position / SEGMENT_BYTES)].get((int)(position % SEGMENT_BYTES));
+		}
+
+		private int getInt(long position) {
+			int offset = (int)(position % SEGMENT_BYTES);
+			ByteBuffer segment = segments[(int)(position / SEGMENT_BYTES)];
+			if (offset + 4 <= segment.limit())
+				return segment.getInt(offset);
+			// crosses the end of the segment
+			int value = 0;
+			for (int i = 0; i < 4; i++)
+				value = (value << 8) | (getByte(position + i) & 0xff);
+			return value;
+		}
+
+		private long getLong(long position) {
+			int offset = (int)(position % SEGMENT_BYTES);
+			ByteBuffer segment = segments[(int)(position / SEGMENT_BYTES)];
+			if (offset + 8 <= segment.limit())
+				return segment.getLong(offset);
+			long value = 0;
+			for (int i = 0; i < 8; i++)
+				value = (value << 8) | (getByte(position + i) & 0xff);
+			return value;
+		}
+	}
+
+	/**
+	 * releases a mapped buffer right away instead of when it is collected. There is no public API for it, so
+	 * it uses Unsafe.invokeCleaner on Java 9 and later and the cleaner of the buffer on Java 8. If neither is
+	 * accessible the buffer is left to the collector
+	 */
+	static class Unmapper {
+		private static final Object UNSAFE;
+		private static final Method INVOKE_CLEANER;
+
+		static {
+			Object unsafe = null;
+			Method invokeCleaner = null;
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// Java 8
+				invokeCleaner = null;
+			}
+			UNSAFE = unsafe;
+			INVOKE_CLEANER = invokeCleaner;
+		}
+
+		static void unmap(MappedByteBuffer buffer) {
+			try {
+				if (INVOKE_CLEANER != null) {
+					INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				} else {
+					Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(buffer);
+					if (cleaner != null)
+						cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				logger.debug("Could not unmap the proof index, it is released when collected", e);
+			}
+		}
+	}
+}
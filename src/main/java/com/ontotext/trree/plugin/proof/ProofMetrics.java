@@ -0,0 +1,235 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters and timers of the phases of an explain call and of the solutions of each rule
+ *
+ * the updates go to striped LongAdders so the concurrent queries and the producer threads of the
+ * incremental mode do not contend. When the metrics are disabled each probe is a single volatile
+ * read: start() returns 0 and everything else returns right away. Enabled by the system property graphdb.proof.metrics or over JMX
+ */
+public class ProofMetrics implements ProofMetricsMBean {
+	static final boolean DEFAULT_ENABLED = Boolean.getBoolean("graphdb.proof.metrics");
+
+	// the timed phases
+	static final int EXPLICIT_CHECK = 0;
+	// isSupported() including the handling of the reported solutions
+	static final int INFERENCE = 1;
+	static final int CONTEXT_LOOKUP = 2;
+	static final int DUPLICATE_CHECK = 3;
+	private static final String[] PHASES = {"explicitCheck", "inference", "contextLookup", "duplicateCheck"};
+
+	// the counted events
+	static final int SOLUTION_EMITTED = 0;
+	static final int DUPLICATE_REJECTED = 1;
+	static final int SELF_REFERENTIAL_SKIPPED = 2;
+	// statements explained from the persisted index
+	static final int INDEX_HIT = 3;
+	private static final String[] EVENTS = {"solutionsEmitted", "duplicatesRejected", "selfReferentialSkipped", "indexHits"};
+
+	private final RuleNames ruleNames;
+	private volatile boolean enabled = DEFAULT_ENABLED;
+	private final LongAdder[] phaseCounts = adders(PHASES.length);
+	private final LongAdder[] phaseNanos = adders(PHASES.length);
+	private final LongAdder[] events = adders(EVENTS.length);
+	// solutions and report() time by rule index, grown when a new rule appears
+	private volatile LongAdder[] ruleSolutions = adders(16);
+	private volatile LongAdder[] ruleNanos = adders(16);
+
+	ProofMetrics(RuleNames ruleNames) {
+		this.ruleNames = ruleNames;
+	}
+
+	/**
+	 * @return the start time of a phase or 0 if the metrics are disabled
+	 */
+	long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	void stop(int phase, long start) {
+		if (start != 0) {
+			phaseNanos[phase].add(System.nanoTime() - start);
+			phaseCounts[phase].increment();
+		}
+	}
+
+	void count(int event) {
+		if (enabled)
+			events[event].increment();
+	}
+
+	/**
+	 * a solution of the rule was emitted
+	 */
+	void ruleSolution(int ruleIndex) {
+		if (enabled)
+			ruleAdder(false, ruleIndex).increment();
+	}
+
+	/**
+	 * time spent in report() for the rule
+	 */
+	void ruleStop(int ruleIndex, long start) {
+		if (start != 0)
+			ruleAdder(true, ruleIndex).add(System.nanoTime() - start);
+	}
+
+	private LongAdder ruleAdder(boolean time, int ruleIndex) {
+		LongAdder[] adders = time ? ruleNanos : ruleSolutions;
+		if (ruleIndex >= adders.length) {
+			// the existing adders are copied to the new arrays so no update is lost
+			synchronized (this) {
+				if (ruleIndex >= ruleSolutions.length) {
+					int length = Math.max(ruleIndex + 1, ruleSolutions.length * 2);
+					ruleSolutions = grow(ruleSolutions, length);
+					ruleNanos = grow(ruleNanos, length);
+				}
+				adders = time ? ruleNanos : ruleSolutions;
+			}
+		}
+		return adders[ruleIndex];
+	}
+
+	/**
+	 * the names and values of all metrics, in the order returned by pr:stats
+	 */
+	void snapshot(List<String> names, List<Long> values) {
+		names.add("enabled");
+		values.add(enabled ? 1L : 0L);
+		for (int i = 0; i < PHASES.length; i++) {
+			names.add(PHASES[i] + ".count");
+			values.add(phaseCounts[i].sum());
+			names.add(PHASES[i] + ".nanos");
+			values.add(phaseNanos[i].sum());
+		}
+		for (int i = 0; i < EVENTS.length; i++) {
+			names.add(EVENTS[i]);
+			values.add(events[i].sum());
+		}
+		LongAdder[] solutions = ruleSolutions, nanos = ruleNanos;
+		int rules = Math.min(ruleNames.size(), Math.min(solutions.length, nanos.length));
+		for (int r = 0; r < rules; r++) {
+			long count = solutions[r].sum();
+			long time = nanos[r].sum();
+			if (count == 0 && time == 0)
+				continue;
+			names.add("rule." + ruleNames.name(r) + ".solutions");
+			values.add(count);
+			names.add("rule." + ruleNames.name(r) + ".nanos");
+			values.add(time);
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public long getExplicitChecks() {
+		return phaseCounts[EXPLICIT_CHECK].sum();
+	}
+
+	@Override
+	public long getExplicitCheckNanos() {
+		return phaseNanos[EXPLICIT_CHECK].sum();
+	}
+
+	@Override
+	public long getInferences() {
+		return phaseCounts[INFERENCE].sum();
+	}
+
+	@Override
+	public long getInferenceNanos() {
+		return phaseNanos[INFERENCE].sum();
+	}
+
+	@Override
+	public long getContextLookups() {
+		return phaseCounts[CONTEXT_LOOKUP].sum();
+	}
+
+	@Override
+	public long getContextLookupNanos() {
+		return phaseNanos[CONTEXT_LOOKUP].sum();
+	}
+
+	@Override
+	public long getDuplicateChecks() {
+		return phaseCounts[DUPLICATE_CHECK].sum();
+	}
+
+	@Override
+	public long getDuplicateCheckNanos() {
+		return phaseNanos[DUPLICATE_CHECK].sum();
+	}
+
+	@Override
+	public long getSolutionsEmitted() {
+		return events[SOLUTION_EMITTED].sum();
+	}
+
+	@Override
+	public long getDuplicatesRejected() {
+		return events[DUPLICATE_REJECTED].sum();
+	}
+
+	@Override
+	public long getSelfReferentialSkipped() {
+		return events[SELF_REFERENTIAL_SKIPPED].sum();
+	}
+
+	@Override
+	public long getIndexHits() {
+		return events[INDEX_HIT].sum();
+	}
+
+	@Override
+	public String[] getRuleStatistics() {
+		List<String> rows = new ArrayList<String>();
+		LongAdder[] solutions = ruleSolutions, nanos = ruleNanos;
+		int rules = Math.min(ruleNames.size(), Math.min(solutions.length, nanos.length));
+		for (int r = 0; r < rules; r++) {
+			long count = solutions[r].sum();
+			if (count > 0 || nanos[r].sum() > 0)
+				rows.add(ruleNames.name(r) + " " + count + " " + nanos[r].sum());
+		}
+		return rows.toArray(new String[rows.size()]);
+	}
+
+	@Override
+	public void reset() {
+		for (LongAdder adder : phaseCounts)
+			adder.reset();
+		for (LongAdder adder : phaseNanos)
+			adder.reset();
+		for (LongAdder adder : events)
+			adder.reset();
+		for (LongAdder adder : ruleSolutions)
+			adder.reset();
+		for (LongAdder adder : ruleNanos)
+			adder.reset();
+	}
+
+	private static LongAdder[] adders(int length) {
+		return grow(new LongAdder[0], length);
+	}
+
+	private static LongAdder[] grow(LongAdder[] adders, int length) {
+		LongAdder[] ret = Arrays.copyOf(adders, length);
+		for (int i = adders.length; i < length; i++)
+			ret[i] = new LongAdder();
+		return ret;
+	}
+}
@@ -0,0 +1,41 @@
+package com.ontotext.trree.plugin.proof;
+
+/**
+ * the management interface of ProofMetrics, registered for each repository that has the plugin
+ */
+public interface ProofMetricsMBean {
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	long getExplicitChecks();
+
+	long getExplicitCheckNanos();
+
+	long getInferences();
+
+	long getInferenceNanos();
+
+	long getContextLookups();
+
+	long getContextLookupNanos();
+
+	long getDuplicateChecks();
+
+	long getDuplicateCheckNanos();
+
+	long getSolutionsEmitted();
+
+	long getDuplicatesRejected();
+
+	long getSelfReferentialSkipped();
+
+	long getIndexHits();
+
+	/**
+	 * "rule solutions reportNanos" for each rule that has reported a solution
+	 */
+	String[] getRuleStatistics();
+
+	void reset();
+}
@@ -1,11 +1,28 @@
 package com.ontotext.trree.plugin.proof;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.OWL;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,17 +33,22 @@ import com.ontotext.trree.StatementIdIterator;
 import com.ontotext.trree.SystemGraphs;
 import com.ontotext.trree.query.QueryResultIterator;
 import com.ontotext.trree.query.StatementSource;
+import com.ontotext.trree.sdk.Entities;
 import com.ontotext.trree.sdk.InitReason;
 import com.ontotext.trree.sdk.ListPatternInterpreter;
 import com.ontotext.trree.sdk.PatternInterpreter;
 import com.ontotext.trree.sdk.PluginBase;
 import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.PluginException;
+import com.ontotext.trree.sdk.PluginTransactionListener;
 import com.ontotext.trree.sdk.Preprocessor;
 import com.ontotext.trree.sdk.Request;
 import com.ontotext.trree.sdk.RequestContext;
 import com.ontotext.trree.sdk.RequestOptions;
+import com.ontotext.trree.sdk.ShutdownReason;
 import com.ontotext.trree.sdk.StatelessPlugin;
 import com.ontotext.trree.sdk.StatementIterator;
+import com.ontotext.trree.sdk.StatementListener;
 import com.ontotext.trree.sdk.SystemPlugin;
 import com.ontotext.trree.sdk.SystemPluginOptions;
 import com.ontotext.trree.sdk.Entities.Scope;
@@ -56,7 +78,8 @@ import com.ontotext.trree.sdk.SystemPluginOptions.Option;
  * @author damyan.ognyanov
  *
  */
-public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPlugin, Preprocessor, PatternInterpreter, ListPatternInterpreter {
+public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPlugin, Preprocessor, PatternInterpreter, ListPatternInterpreter,
+		StatementListener, PluginTransactionListener {
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 	// private key to store the connection in the request context
 	private static final String REPOSITORY_CONNECTION = "repconn";
@@ -71,7 +94,34 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 	public static final IRI PRED_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"predicate");
 	public static final IRI OBJ_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"object");
 	public static final IRI CONTEXT_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"context");
-	private final static String KEY_STORAGE = "storage";
+	public static final IRI PROOF_TREE_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"proofTree");
+	public static final IRI NODE_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"node");
+	public static final IRI PARENT_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"parent");
+	public static final IRI DEPTH_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"depth");
+	public static final IRI OPTIONS_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"options");
+	public static final IRI MAX_SOLUTIONS_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"maxSolutions");
+	public static final IRI INCREMENTAL_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"incremental");
+	public static final IRI EXPLAIN_ALL_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"explainAll");
+	public static final IRI EXPLAINED_SUBJ_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"explainedSubject");
+	public static final IRI EXPLAINED_PRED_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"explainedPredicate");
+	public static final IRI EXPLAINED_OBJ_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"explainedObject");
+	public static final IRI STATS_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"stats");
+	public static final IRI RULE_COUNT_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"ruleCount");
+	public static final IRI COUNT_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"count");
+	public static final IRI IS_DERIVABLE_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"isDerivable");
+	public static final IRI SHORTEST_PROOF_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"shortestProof");
+	public static final IRI TIMEOUT_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"timeout");
+	public static final IRI MAX_PREMISES_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"maxPremises");
+	public static final IRI TRUNCATED_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"truncated");
+	public static final IRI COLLAPSE_SAME_AS_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"collapseSameAs");
+	public static final IRI SUBJ_ALIAS_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"subjectAlias");
+	public static final IRI OBJ_ALIAS_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"objectAlias");
+	public static final IRI RULE_FILTER_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"ruleFilter");
+	public static final IRI GRAPH_FILTER_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"graphFilter");
+	public static final IRI SUPPORTS_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"supports");
+	public static final IRI BUILD_INDEX_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"buildIndex");
+	public static final IRI INDEX_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"index");
+	public static final IRI EXPLAIN_ROW_URI = SimpleValueFactory.getInstance().createIRI(NAMESPACE+"explainRow");
 
 	int contextMask = StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS |
 			StatementIdIterator.INFERRED_STATEMENT_STATUS;
@@ -82,14 +132,91 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 	long predId = 0;
 	long objId = 0;
 	long contextId = 0;
+	long proofTreeId = 0;
+	long nodeId = 0;
+	long parentId = 0;
+	long depthId = 0;
+	long optionsId = 0;
+	long maxSolutionsId = 0;
+	long incrementalId = 0;
+	long explainAllId = 0;
+	long explainedSubjId = 0;
+	long explainedPredId = 0;
+	long explainedObjId = 0;
+	long statsId = 0;
+	long ruleCountId = 0;
+	long countId = 0;
+	long isDerivableId = 0;
+	long shortestProofId = 0;
+	long timeoutId = 0;
+	long maxPremisesId = 0;
+	long truncatedId = 0;
+	long collapseSameAsId = 0;
+	long subjAliasId = 0;
+	long objAliasId = 0;
+	long ruleFilterId = 0;
+	long graphFilterId = 0;
+	long supportsId = 0;
+	long buildIndexId = 0;
+	long indexId = 0;
+	long explainRowId = 0;
+	long sameAsId = 0;
+
+	// indices of the rule names reported by the inferencer
+	final RuleNames ruleNames = new RuleNames();
+
+	// the premise and conclusion predicates of the rules, learned from the reported solutions
+	final RulePatterns rulePatterns = new RulePatterns();
+
+	// timings of the explain phases and solutions by rule, also exposed over JMX
+	final ProofMetrics metrics = new ProofMetrics(ruleNames);
+	private ObjectName metricsName = null;
+
+	// solutions shared between the queries, dropped when a transaction modifies the repository
+	final ExplanationCache explanations = new ExplanationCache(ExplanationCache.defaultMaxMemory());
+
+	// rows returned by the explain patterns, the basis of their estimates
+	final PredicateStatistics statistics = new PredicateStatistics();
+
+	// the solutions of all implicit statements persisted in the data directory, built by pr:buildIndex
+	ProofIndex index = new ProofIndex(null);
+
+	// threads running the inferencer for the explain iterators in incremental mode
+	private ExecutorService producers = null;
 
 	/**
 	 * this is the context implementation where the plugin stores currently running patterns
-	 * it just keeps some values using sting keys for further access
+	 * the iterators are kept by their reificationId, other values by string keys
 	 *
 	 */
 	class ContextImpl implements RequestContext {
 		HashMap<String, Object> map = new HashMap<String, Object>();
+		// the running iterators by their reificationId, used by the accessor predicates
+		LongObjectMap<PremiseIter> iterators = new LongObjectMap<PremiseIter>();
+		// ids of the rule name literals by rule index, 0 if not registered yet
+		long[] ruleEntities = new long[16];
+		// the explain settings for that request, changed by the option patterns with pr:options as subject,
+		// and the options nodes bound by the option patterns with a variable subject
+		ExplainOptions options = new ExplainOptions();
+		LongObjectMap<ExplainOptions> optionNodes = new LongObjectMap<ExplainOptions>();
+		// contexts of the premises resolved within that request, for the graph filter they were resolved with
+		TripleCache premiseContexts = null;
+		long[] premiseContextsFilter = null;
+		// the pr:explainRow iterators by the triple of their current premise, the latest one first, and the
+		// ids of the triples bound within that request
+		LongObjectMap<ExplainRowIter> rows = new LongObjectMap<ExplainRowIter>();
+		TripleCache rowTriples = null;
+		// representatives of the owl:sameAs classes within that request
+		SameAsClasses sameAs = null;
+		// solutions of the statements expanded in proof trees within that request
+		HashMap<TripleKey, PremiseArena> proofs = null;
+		// the number of statements written by pr:buildIndex within that request, -1 if not built, and whether
+		// the time limit stopped it
+		long indexedCount = -1;
+		boolean indexTruncated = false;
+		// the epoch of the shared cache when the request started (preprocess), the solutions computed on its
+		// snapshot are not stored once a commit has changed the epoch
+		final long cacheEpoch = explanations.epoch();
 		Request request;
 		@Override
 		public Request getRequest() {
@@ -110,6 +237,49 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 		public void removeAttribute(String key) {
 			map.remove(key);
 		}
+		/**
+		 * the id of the literal with the rule name, registered once per request
+		 */
+		long ruleEntity(int ruleIndex, PluginConnection pluginConnection) {
+			if (ruleIndex >= ruleEntities.length)
+				ruleEntities = Arrays.copyOf(ruleEntities, Math.max(ruleIndex + 1, ruleEntities.length * 2));
+			long id = ruleEntities[ruleIndex];
+			if (id == 0) {
+				id = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(ruleNames.name(ruleIndex)), Scope.REQUEST);
+				ruleEntities[ruleIndex] = id;
+			}
+			return id;
+		}
+		synchronized TripleCache getPremiseContexts(long[] graphFilter) {
+			if (premiseContexts == null || !Arrays.equals(premiseContextsFilter, graphFilter)) {
+				premiseContexts = new TripleCache(TripleCache.DEFAULT_CAPACITY);
+				premiseContextsFilter = graphFilter;
+			}
+			return premiseContexts;
+		}
+		/**
+		 * the iterator of a state variable, the current premise of a pr:explainRow pattern or a pr:explain pattern
+		 */
+		PremiseIter iterator(long id) {
+			ExplainRowIter row = rows.get(id);
+			return (row != null) ? row.premises : iterators.get(id);
+		}
+		TripleCache getRowTriples() {
+			if (rowTriples == null)
+				rowTriples = new TripleCache(TripleCache.DEFAULT_CAPACITY);
+			return rowTriples;
+		}
+		// also reached from the producer thread of an incremental explain
+		synchronized SameAsClasses getSameAs() {
+			if (sameAs == null)
+				sameAs = new SameAsClasses(sameAsId);
+			return sameAs;
+		}
+		HashMap<TripleKey, PremiseArena> getProofs() {
+			if (proofs == null)
+				proofs = new HashMap<TripleKey, PremiseArena>();
+			return proofs;
+		}
 	}
 
 	/*
@@ -123,7 +293,11 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 									   PluginConnection pluginConnection, RequestContext requestContext) {
 		
 		if (predicate != explainId && predicate != ruleId && predicate != contextId &&
-				predicate != subjId && predicate != predId && predicate != objId)
+				predicate != subjId && predicate != predId && predicate != objId &&
+				predicate != nodeId && predicate != parentId && predicate != depthId &&
+				predicate != explainedSubjId && predicate != explainedPredId && predicate != explainedObjId &&
+				predicate != statsId && predicate != countId && predicate != truncatedId &&
+				predicate != subjAliasId && predicate != objAliasId && predicate != buildIndexId && !isOption(predicate))
 			return null;
 
 		// make sure we have the proper request context set when preprocess() has been invoked
@@ -133,51 +307,182 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 		// not our context
 		if (ctx == null)
 			return StatementIterator.EMPTY;
+
+		if (predicate == statsId)
+			return statsIterator(subject, pluginConnection);
+
+		if (predicate == buildIndexId) {
+			// the subject is the status node of the index
+			if (subject != 0 && subject != indexId)
+				return StatementIterator.EMPTY;
+			// the pattern may be evaluated again within the query (e.g. in a join), the index is built once
+			if (ctx.indexedCount < 0)
+				ctx.indexedCount = buildIndex(ctx, pluginConnection.getEntities());
+			return StatementIterator.create(indexId, predicate,
+					pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(ctx.indexedCount), Scope.REQUEST), 0);
+		}
+
+		if (isOption(predicate)) {
+			// with pr:options as subject the pattern changes the settings of the request, used by the explain
+			// patterns evaluated after it. Otherwise the subject is an options node, a new one if it is not
+			// bound, which the explain patterns take as the last element of their list
+			ExplainOptions options;
+			if (subject == optionsId) {
+				options = ctx.options;
+			} else if (subject == 0) {
+				options = ctx.options.copy();
+				subject = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
+				ctx.optionNodes.put(subject, options);
+			} else {
+				options = ctx.optionNodes.get(subject);
+				if (options == null)
+					return StatementIterator.EMPTY;
+			}
+			Value value = (object > 0) ? pluginConnection.getEntities().get(object) : null;
+			// each filter pattern adds a rule or a graph to the ones already allowed
+			if (predicate == graphFilterId && value != null) {
+				options.addGraph(object);
+				return StatementIterator.create(subject, predicate, object, 0);
+			}
+			if (!(value instanceof Literal))
+				return StatementIterator.EMPTY;
+			try {
+				if (predicate == maxSolutionsId)
+					options.maxSolutions = ((Literal)value).longValue();
+				else if (predicate == incrementalId)
+					options.incremental = ((Literal)value).booleanValue();
+				else if (predicate == timeoutId)
+					options.timeout = ((Literal)value).longValue();
+				else if (predicate == maxPremisesId)
+					options.maxPremises = ((Literal)value).longValue();
+				else if (predicate == collapseSameAsId)
+					options.collapseSameAs = ((Literal)value).booleanValue();
+				else if (predicate == ruleFilterId)
+					options.addRule(value.stringValue());
+			} catch (IllegalArgumentException e) {
+				throw new PluginException("Invalid value " + value + " for option " + pluginConnection.getEntities().get(predicate), e);
+			}
+			return StatementIterator.create(subject, predicate, object, 0);
+		}
 		
 		if (predicate == ruleId){
 			// same for the object
-			ExplainIter task = (ExplainIter)ctx.getAttribute(KEY_STORAGE+subject);
-			if (task == null || (task.current == null))
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent())
 				return StatementIterator.EMPTY;
 			// bind the value of the predicate from the current solution as object of the triple pattern
-			return StatementIterator.create(task.reificationId, predicate, 
-					pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(task.current.rule), Scope.REQUEST), 0);
+			return StatementIterator.create(task.reificationId, predicate, ctx.ruleEntity(task.currentRuleIndex(), pluginConnection), 0);
 		} else if (predicate == subjId){
 			// same for the object
-			ExplainIter task = (ExplainIter)ctx.getAttribute(KEY_STORAGE+subject);
-			if (task == null || (task.current == null))
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent() || !task.hasPremises())
 				return StatementIterator.EMPTY;
-			if (object != 0 && task.values[0] != object)
+			if (object != 0 && task.value(0) != object)
 				return StatementIterator.EMPTY;
 			// bind the value of the predicate from the current solution as object of the triple pattern
-			return StatementIterator.create(task.reificationId, predicate, task.values[0], 0);
+			return StatementIterator.create(task.reificationId, predicate, task.value(0), 0);
 		} else if (predicate == predId){
 			// same for the object
-			ExplainIter task = (ExplainIter)ctx.getAttribute(KEY_STORAGE+subject);
-			if (task == null || (task.current == null))
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent() || !task.hasPremises())
 				return StatementIterator.EMPTY;
-			if (object != 0 && task.values[1] != object)
+			if (object != 0 && task.value(1) != object)
 				return StatementIterator.EMPTY;
 			// bind the value of the predicate from the current solution as object of the triple pattern
-			return StatementIterator.create(task.reificationId, predicate, task.values[1], 0);
+			return StatementIterator.create(task.reificationId, predicate, task.value(1), 0);
 		} else if (predicate == objId){
 			// same for the object
-			ExplainIter task = (ExplainIter)ctx.getAttribute(KEY_STORAGE+subject);
-			if (task == null || (task.current == null))
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent() || !task.hasPremises())
 				return StatementIterator.EMPTY;
-			if (object != 0 && task.values[2] != object)
+			if (object != 0 && task.value(2) != object)
 				return StatementIterator.EMPTY;
 			// bind the value of the predicate from the current solution as object of the triple pattern
-			return StatementIterator.create(task.reificationId, predicate, task.values[2], 0);
+			return StatementIterator.create(task.reificationId, predicate, task.value(2), 0);
 		} else if (predicate == contextId){
 			// same for the object
-			ExplainIter task = (ExplainIter)ctx.getAttribute(KEY_STORAGE+subject);
-			if (task == null || (task.current == null))
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent() || !task.hasPremises())
 				return StatementIterator.EMPTY;
-			if (object != 0 && task.values[3] != object)
+			if (object != 0 && task.value(3) != object)
 				return StatementIterator.EMPTY;
 			// bind the value of the predicate from the current solution as object of the triple pattern
-			return StatementIterator.create(task.reificationId, predicate, task.values[3], 0);
+			return StatementIterator.create(task.reificationId, predicate, task.value(3), 0);
+		} else if (predicate == nodeId || predicate == parentId || predicate == depthId) {
+			// the position of the current premise in a proof tree
+			PremiseIter task = ctx.iterator(subject);
+			if (predicate == depthId && task instanceof SupportsIter && task.hasCurrent()) {
+				// the number of rule applications between the premise and the current conclusion
+				return StatementIterator.create(task.reificationId, predicate,
+						pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(((SupportsIter)task).currentDepth()), Scope.REQUEST), 0);
+			}
+			if (!(task instanceof ProofTreeIter) || !task.hasCurrent())
+				return StatementIterator.EMPTY;
+			ProofTreeIter tree = (ProofTreeIter)task;
+			int value = (predicate == nodeId) ? tree.currentNode() : (predicate == parentId) ? tree.currentParent() : tree.currentDepth();
+			return StatementIterator.create(task.reificationId, predicate,
+					pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(value), Scope.REQUEST), 0);
+		} else if (predicate == subjAliasId || predicate == objAliasId) {
+			// the subject or object of the current premise and all its owl:sameAs aliases
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent() || !task.hasPremises())
+				return StatementIterator.EMPTY;
+			AbstractRepositoryConnection conn = (AbstractRepositoryConnection)ctx.getAttribute(REPOSITORY_CONNECTION);
+			final long[] aliases = ctx.getSameAs().aliases(task.value((predicate == subjAliasId) ? 0 : 2), conn);
+			final long reificationId = task.reificationId;
+			final long aliasPredicate = predicate;
+			final long bound = object;
+			return new StatementIterator() {
+				int pos = -1;
+
+				@Override
+				public boolean next() {
+					while (++pos < aliases.length) {
+						if (bound != 0 && aliases[pos] != bound)
+							continue;
+						subject = reificationId;
+						predicate = aliasPredicate;
+						object = aliases[pos];
+						return true;
+					}
+					return false;
+				}
+
+				@Override
+				public void close() {
+					pos = aliases.length;
+				}
+			};
+		} else if (predicate == truncatedId) {
+			// whether the time limit stopped pr:buildIndex in this request
+			if (subject == indexId) {
+				if (ctx.indexedCount < 0)
+					return StatementIterator.EMPTY;
+				return StatementIterator.create(indexId, predicate,
+						pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(ctx.indexTruncated), Scope.REQUEST), 0);
+			}
+			// whether a limit stopped the explanation of the current statement
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent())
+				return StatementIterator.EMPTY;
+			return StatementIterator.create(task.reificationId, predicate,
+					pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(task.isTruncated()), Scope.REQUEST), 0);
+		} else if (predicate == countId) {
+			// the number of derivations of the current rule
+			PremiseIter task = ctx.iterator(subject);
+			if (!(task instanceof RuleCountIter) || !task.hasCurrent())
+				return StatementIterator.EMPTY;
+			return StatementIterator.create(task.reificationId, predicate,
+					pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(((RuleCountIter)task).currentCount()), Scope.REQUEST), 0);
+		} else if (predicate == explainedSubjId || predicate == explainedPredId || predicate == explainedObjId) {
+			// the statement explained by the current premise
+			PremiseIter task = ctx.iterator(subject);
+			if (task == null || !task.hasCurrent())
+				return StatementIterator.EMPTY;
+			long value = task.explained((predicate == explainedSubjId) ? 0 : (predicate == explainedPredId) ? 1 : 2);
+			if (object != 0 && value != object)
+				return StatementIterator.EMPTY;
+			return StatementIterator.create(task.reificationId, predicate, value, 0);
 		}
 		
 		// if the predicate is not one of the registered in the ProvenancePlugin return null 
@@ -187,18 +492,35 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 	 * returns some cardinality values for the plugin patterns to make sure
 	 * that derivedFrom is evaluated first and binds the solution designator
 	 * the solution indicator is used by the assess predicates to get the subject, pred or object of the current solution
+	 * (the explain patterns themselves are estimated from the rows observed per predicate, see PredicateStatistics)
 	 */
 	@Override
 	public double estimate(long subject, long predicate, long object, long context, PluginConnection pluginConnection,
 						   RequestContext requestContext) {
+		// options should be evaluated before anything else: the request options apply to the patterns
+		// evaluated after them and the patterns that take an options node need it bound
+		if (isOption(predicate))
+			return 0.1;
+		// a few rows that need no binding
+		if (predicate == statsId)
+			return (subject != 0) ? 1.0 : 30.0;
+		if (predicate == buildIndexId)
+			return 1.0;
 		// if subject is not bound, any patttern return max value until there is some binding ad subject place
 		if (subject == 0)
 			return Double.MAX_VALUE;
 		// explain fetching predicates
 		if (predicate == ruleId || predicate == subjId|| predicate == predId || 
-				predicate == objId || predicate == contextId) {
+				predicate == objId || predicate == contextId ||
+				predicate == nodeId || predicate == parentId || predicate == depthId ||
+				predicate == explainedSubjId || predicate == explainedPredId || predicate == explainedObjId ||
+				predicate == countId || predicate == truncatedId) {
 			return 1.0;
 		}
+		if (predicate == subjAliasId || predicate == objAliasId) {
+			// a few aliases usually
+			return 10.0;
+		}
 		// unknown predicate??? maybe it is good to throw an exception
 		return Double.MAX_VALUE;
 	}
@@ -250,18 +572,332 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 		predId = pluginConnection.getEntities().put(PRED_URI, Scope.SYSTEM);
 		objId = pluginConnection.getEntities().put(OBJ_URI, Scope.SYSTEM);
 		contextId = pluginConnection.getEntities().put(CONTEXT_URI, Scope.SYSTEM);
+		proofTreeId = pluginConnection.getEntities().put(PROOF_TREE_URI, Scope.SYSTEM);
+		nodeId = pluginConnection.getEntities().put(NODE_URI, Scope.SYSTEM);
+		parentId = pluginConnection.getEntities().put(PARENT_URI, Scope.SYSTEM);
+		depthId = pluginConnection.getEntities().put(DEPTH_URI, Scope.SYSTEM);
+		optionsId = pluginConnection.getEntities().put(OPTIONS_URI, Scope.SYSTEM);
+		maxSolutionsId = pluginConnection.getEntities().put(MAX_SOLUTIONS_URI, Scope.SYSTEM);
+		incrementalId = pluginConnection.getEntities().put(INCREMENTAL_URI, Scope.SYSTEM);
+		explainAllId = pluginConnection.getEntities().put(EXPLAIN_ALL_URI, Scope.SYSTEM);
+		explainedSubjId = pluginConnection.getEntities().put(EXPLAINED_SUBJ_URI, Scope.SYSTEM);
+		explainedPredId = pluginConnection.getEntities().put(EXPLAINED_PRED_URI, Scope.SYSTEM);
+		explainedObjId = pluginConnection.getEntities().put(EXPLAINED_OBJ_URI, Scope.SYSTEM);
+		statsId = pluginConnection.getEntities().put(STATS_URI, Scope.SYSTEM);
+		ruleCountId = pluginConnection.getEntities().put(RULE_COUNT_URI, Scope.SYSTEM);
+		countId = pluginConnection.getEntities().put(COUNT_URI, Scope.SYSTEM);
+		isDerivableId = pluginConnection.getEntities().put(IS_DERIVABLE_URI, Scope.SYSTEM);
+		shortestProofId = pluginConnection.getEntities().put(SHORTEST_PROOF_URI, Scope.SYSTEM);
+		timeoutId = pluginConnection.getEntities().put(TIMEOUT_URI, Scope.SYSTEM);
+		maxPremisesId = pluginConnection.getEntities().put(MAX_PREMISES_URI, Scope.SYSTEM);
+		truncatedId = pluginConnection.getEntities().put(TRUNCATED_URI, Scope.SYSTEM);
+		collapseSameAsId = pluginConnection.getEntities().put(COLLAPSE_SAME_AS_URI, Scope.SYSTEM);
+		subjAliasId = pluginConnection.getEntities().put(SUBJ_ALIAS_URI, Scope.SYSTEM);
+		objAliasId = pluginConnection.getEntities().put(OBJ_ALIAS_URI, Scope.SYSTEM);
+		ruleFilterId = pluginConnection.getEntities().put(RULE_FILTER_URI, Scope.SYSTEM);
+		graphFilterId = pluginConnection.getEntities().put(GRAPH_FILTER_URI, Scope.SYSTEM);
+		supportsId = pluginConnection.getEntities().put(SUPPORTS_URI, Scope.SYSTEM);
+		buildIndexId = pluginConnection.getEntities().put(BUILD_INDEX_URI, Scope.SYSTEM);
+		indexId = pluginConnection.getEntities().put(INDEX_URI, Scope.SYSTEM);
+		explainRowId = pluginConnection.getEntities().put(EXPLAIN_ROW_URI, Scope.SYSTEM);
+		sameAsId = pluginConnection.getEntities().put(OWL.SAMEAS, Scope.SYSTEM);
+		registerMetrics();
+		// only mapped here, the index is built on request
+		index = new ProofIndex(getDataDir());
+		Entities entities = pluginConnection.getEntities();
+		index.open(entities.size(), entities::get);
+	}
+
+	@Override
+	public void shutdown(ShutdownReason shutdownReason) {
+		unregisterMetrics();
+		index.close();
+		synchronized (this) {
+			if (producers != null) {
+				producers.shutdownNow();
+				producers = null;
+			}
+		}
+	}
+
+	/*
+	 * any added or removed statement may change the derivations of the other statements
+	 * so the shared solutions are dropped when the transaction completes
+	 */
+	@Override
+	public boolean statementAdded(long subject, long predicate, long object, long context, boolean isExplicit,
+			PluginConnection pluginConnection) {
+		explanations.statementsModified();
+		index.statementsModified();
+		return false;
+	}
+
+	@Override
+	public boolean statementRemoved(long subject, long predicate, long object, long context, boolean isExplicit,
+			PluginConnection pluginConnection) {
+		explanations.statementsModified();
+		index.statementsModified();
+		return false;
+	}
+
+	@Override
+	public void transactionStarted(PluginConnection pluginConnection) {
+	}
+
+	@Override
+	public void transactionCommit(PluginConnection pluginConnection) {
+	}
+
+	@Override
+	public void transactionCompleted(PluginConnection pluginConnection) {
+		explanations.transactionFinished();
+		index.transactionFinished(true);
+	}
+
+	@Override
+	public void transactionAborted(PluginConnection pluginConnection) {
+		explanations.transactionFinished();
+		index.transactionFinished(false);
+	}
+
+	/**
+	 * registers the metrics MBean under a name unique for the repository of the plugin
+	 */
+	private void registerMetrics() {
+		try {
+			String repository = (getDataDir() != null) ? getDataDir().getAbsolutePath() : String.valueOf(System.identityHashCode(this));
+			ObjectName name = new ObjectName("com.ontotext.graphdb.proof:type=ProofMetrics,repository=" + ObjectName.quote(repository));
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			metricsName = name;
+		} catch (JMException | SecurityException e) {
+			logger.warn("Could not register the proof metrics MBean", e);
+		}
+	}
+
+	private void unregisterMetrics() {
+		if (metricsName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (JMException | SecurityException e) {
+			logger.debug("Could not unregister the proof metrics MBean", e);
+		}
+		metricsName = null;
+	}
+
+	boolean isOption(long predicate) {
+		return predicate == maxSolutionsId || predicate == incrementalId ||
+				predicate == timeoutId || predicate == maxPremisesId || predicate == collapseSameAsId ||
+				predicate == ruleFilterId || predicate == graphFilterId;
+	}
+
+	/**
+	 * explains all implicit statements with the inferencer and writes their solutions to the persisted index,
+	 * the statements whose explanation was cut by a limit are left to the inferencer. The build runs on the
+	 * query thread within graphdb.proof.indexTimeout: once it is reached the statements explained so far are
+	 * installed and ctx.indexTruncated is set, a cancelled query installs nothing
+	 * @return the number of statements in the index
+	 */
+	long buildIndex(ContextImpl ctx, Entities entities) {
+		AbstractInferencer infer = (AbstractInferencer)ctx.getAttribute(INFERENCER);
+		if (infer == null || !infer.getInferStatementsFlag())
+			throw new PluginException("The proof index needs a repository with inference");
+		AbstractRepositoryConnection conn = (AbstractRepositoryConnection)ctx.getAttribute(REPOSITORY_CONNECTION);
+		// the complete solutions, without the limits and filters of the query
+		ExplainOptions build = new ExplainOptions();
+		build.maxSolutions = 0;
+		build.timeout = 0;
+		build.maxPremises = 0;
+		ExplainBudget budget = new ExplainBudget(ExplainOptions.DEFAULT_INDEX_TIMEOUT, 0);
+		// a commit since the request started makes the index stale right away
+		ProofIndex.Writer writer = null;
+		try {
+			writer = index.writer();
+			long lastSubj = 0, lastPred = 0, lastObj = 0;
+			try (StatementIdIterator scan = conn.getStatements(0, 0, 0, StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS)) {
+				while (scan.hasNext()) {
+					long s = scan.subj, p = scan.pred, o = scan.obj;
+					boolean inferred = (scan.status & StatementIdIterator.INFERRED_STATEMENT_STATUS) != 0;
+					scan.next();
+					if (!inferred || (s == lastSubj && p == lastPred && o == lastObj))
+						continue;
+					if (Thread.currentThread().isInterrupted())
+						throw new PluginException("Interrupted while building the proof index");
+					if (budget.exceeded()) {
+						ctx.indexTruncated = true;
+						break;
+					}
+					lastSubj = s;
+					lastPred = p;
+					lastObj = o;
+					// a statement that is both inferred and explicit is not implicit
+					try (StatementIdIterator explicit = conn.getStatements(s, p, o, contextMask)) {
+						if (explicit.hasNext())
+							continue;
+					}
+					// a statement gets the time left, it is not written if that cuts its explanation
+					if (ExplainOptions.DEFAULT_INDEX_TIMEOUT > 0)
+						build.timeout = Math.max(1, ExplainOptions.DEFAULT_INDEX_TIMEOUT - budget.elapsed());
+					ExplainIter iter = new ExplainIter(ctx, build, 0, s, p, o, false, false, 0);
+					iter.infer = infer;
+					iter.conn = conn;
+					try {
+						iter.init();
+						if (!iter.truncated)
+							writer.add(s, p, o, iter.solutions);
+					} finally {
+						iter.close();
+					}
+				}
+			}
+			if (ctx.indexTruncated)
+				logger.warn("The proof index was not built within {} ms, the statements not written are explained by the inferencer", ExplainOptions.DEFAULT_INDEX_TIMEOUT);
+			long count = writer.finish(ruleNames, entities.size(), entities::get);
+			index.install(writer, ctx.cacheEpoch == explanations.epoch());
+			writer = null;
+			return count;
+		} catch (IOException e) {
+			throw new PluginException("Could not write the proof index", e);
+		} finally {
+			if (writer != null)
+				writer.abort();
+		}
+	}
+
+	/**
+	 * the metrics as (name literal, pr:stats, value literal) rows, a bound subject selects a single metric
+	 */
+	private StatementIterator statsIterator(long subject, PluginConnection pluginConnection) {
+		final List<String> names = new ArrayList<String>();
+		final List<Long> values = new ArrayList<Long>();
+		metrics.snapshot(names, values);
+		names.add("index.available");
+		values.add(index.isAvailable() ? 1L : 0L);
+		names.add("index.statements");
+		values.add(index.size());
+		final String selected = (subject != 0 && pluginConnection.getEntities().get(subject) != null) ?
+				pluginConnection.getEntities().get(subject).stringValue() : null;
+		final long[] rows = new long[names.size() * 2];
+		int count = 0;
+		for (int i = 0; i < names.size(); i++) {
+			if (selected != null && !selected.equals(names.get(i)))
+				continue;
+			rows[count * 2] = (selected != null) ? subject : pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(names.get(i)), Scope.REQUEST);
+			rows[count * 2 + 1] = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createLiteral(values.get(i).longValue()), Scope.REQUEST);
+			count++;
+		}
+		final int size = count;
+		return new StatementIterator() {
+			int pos = -1;
+
+			@Override
+			public boolean next() {
+				if (++pos >= size)
+					return false;
+				subject = rows[pos * 2];
+				predicate = statsId;
+				object = rows[pos * 2 + 1];
+				return true;
+			}
+
+			@Override
+			public void close() {
+				pos = size;
+			}
+		};
+	}
+
+	/**
+	 * the pool of daemon threads used to run the inferencer in incremental mode, created on first use
+	 */
+	synchronized ExecutorService getProducers() {
+		if (producers == null) {
+			final AtomicInteger counter = new AtomicInteger();
+			producers = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "proof-explain-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return producers;
 	}
 
 	@Override
 	public double estimate(long subject, long predicate, long[] objects, long context, 
 			PluginConnection pluginConnection, RequestContext requestContext) {
-		if (predicate == explainId) {
+		// an options node that ends the list is bound by the option patterns, which have to come first
+		ContextImpl ctx = (requestContext instanceof ContextImpl) ? (ContextImpl)requestContext : null;
+		int maxArguments = (predicate == proofTreeId || predicate == supportsId) ? 4 : (predicate == explainAllId) ? 2 : 3;
+		if (objects != null && objects.length > 0 && (objects.length > maxArguments
+				|| (ctx != null && ctx.optionNodes.get(objects[objects.length - 1]) != null))) {
+			if (objects[objects.length - 1] == 0)
+				return Double.MAX_VALUE;
+			objects = Arrays.copyOf(objects, objects.length - 1);
+		}
+		if (objects == null)
+			return Double.MAX_VALUE;
+		if (predicate == explainId || predicate == explainRowId) {
+			if (objects.length != 3)
+				return Double.MAX_VALUE;
+			// with an unbound element it scans the matching implicit statements and explains each of them, as
+			// pr:explainAll does. That is estimated from the observed scans, a statement bound by another
+			// pattern is usually far cheaper, so that pattern comes first
+			if (objects[0] == 0 || objects[1] == 0 || objects[2] == 0) {
+				long pred = (objects[1] != 0) ? objects[1] : PredicateStatistics.ANY;
+				return Math.max(1.0, statistics.average(PredicateStatistics.SCAN, pred, 100000)
+						* statistics.average(PredicateStatistics.EXPLAIN, pred, 10));
+			}
+			return Math.max(1.0, statistics.average(PredicateStatistics.EXPLAIN, objects[1], 10));
+		}
+		if (predicate == proofTreeId) {
+			if (objects.length != 3 && objects.length != 4)
+				return Double.MAX_VALUE;
+			if (objects[0] == 0 || objects[1] == 0 || objects[2] == 0 || (objects.length == 4 && objects[3] == 0))
+				return Double.MAX_VALUE;
+			return Math.max(1.0, statistics.average(PredicateStatistics.TREE, objects[1], 100));
+		}
+		if (predicate == shortestProofId) {
 			if (objects.length != 3)
 				return Double.MAX_VALUE;
 			if (objects[0] == 0 || objects[1] == 0 || objects[2] == 0)
 				return Double.MAX_VALUE;
+			// a single solution per node, usually a few nodes
 			return 10L;
 		}
+		if (predicate == isDerivableId) {
+			if (objects.length != 3)
+				return Double.MAX_VALUE;
+			if (objects[0] == 0 || objects[1] == 0 || objects[2] == 0)
+				return Double.MAX_VALUE;
+			// a single row at most
+			return 1.0;
+		}
+		if (predicate == ruleCountId) {
+			if (objects.length != 3)
+				return Double.MAX_VALUE;
+			if (objects[0] == 0 || objects[1] == 0 || objects[2] == 0)
+				return Double.MAX_VALUE;
+			// a row per rule, at most as many as the premises of a full explain
+			return Math.max(1.0, Math.min(ruleNames.size(), statistics.average(PredicateStatistics.EXPLAIN, objects[1], 10)));
+		}
+		if (predicate == supportsId) {
+			if (objects.length != 3 && objects.length != 4)
+				return Double.MAX_VALUE;
+			if (objects[0] == 0 || objects[1] == 0 || objects[2] == 0 || (objects.length == 4 && objects[3] == 0))
+				return Double.MAX_VALUE;
+			// a lookup and an inferencer run for each candidate
+			return 1000.0;
+		}
+		if (predicate == explainAllId) {
+			// a scan of the matching statements, the filters are optional
+			if (objects.length > 2)
+				return Double.MAX_VALUE;
+			long pred = (objects.length > 0 && objects[0] != 0) ? objects[0] : PredicateStatistics.ANY;
+			return Math.max(1.0, statistics.average(PredicateStatistics.SCAN, pred, 100000)
+					* statistics.average(PredicateStatistics.EXPLAIN, pred, 10));
+		}
 		return Double.MAX_VALUE;
 	}
 
@@ -275,6 +911,21 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 		// not our context
 		if (ctx == null)
 			return StatementIterator.EMPTY;
+
+		// the list may end with an options node, the settings of the request apply otherwise
+		ExplainOptions options = (objects != null && objects.length > 0) ? ctx.optionNodes.get(objects[objects.length - 1]) : null;
+		if (options != null)
+			objects = Arrays.copyOf(objects, objects.length - 1);
+		else
+			options = ctx.options;
+
+		if (predicate == explainRowId) {
+			// the premises of pr:explain, each bound as a single value
+			StatementIterator premises = interpret(subject, explainId, objects, context, pluginConnection, requestContext);
+			if (!(premises instanceof PremiseIter))
+				return StatementIterator.EMPTY;
+			return new ExplainRowIter(ctx, (PremiseIter)premises, pluginConnection.getEntities());
+		}
 		
 		if (predicate == explainId) {
 			if (objects == null || objects.length != 3)
@@ -283,196 +934,1511 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 			long subj = objects[0];
 			long pred = objects[1];
 			long obj = objects[2];
-			// empty if no binding, or some of the nodes is not a regular entity
-			if (subj <= 0 || obj <= 0 || pred <= 0)
-				return StatementIterator.EMPTY;
-			// a context if an explicit exists
-			long aContext = 0;
-			AbstractInferencer infer = (AbstractInferencer)ctx.getAttribute(INFERENCER);
-			if (infer.getInferStatementsFlag() == false)
+			// empty if some of the nodes is not a regular entity
+			if (subj < 0 || obj < 0 || pred < 0)
 				return StatementIterator.EMPTY;
-
-			// handle an explicit statement
-			AbstractRepositoryConnection conn = (AbstractRepositoryConnection)ctx.getAttribute(REPOSITORY_CONNECTION);
-			boolean isExplicit = false;
-			boolean isDerivedFromSameAs = false;
-			{
-				StatementIdIterator iter = conn.getStatements(subj, pred, obj, StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS | StatementIdIterator.INFERRED_STATEMENT_STATUS);
-				try {
-					isExplicit = iter.hasNext();
-					aContext = iter.context;
-					// handle if explicit comes from sameAs
-					isDerivedFromSameAs = 0 != (iter.status & StatementIdIterator.SKIP_ON_REINFER_STATEMENT_STATUS);
-				} finally {
-					iter.close();
-				}
+			if (subj == 0 || obj == 0 || pred == 0) {
+				// explain each matching implicit statement, bound by pr:explainedSubject etc.
+				if (subj == 0 && obj == 0 && pred == 0)
+					return StatementIterator.EMPTY;
+				if (ctx.getAttribute(INFERENCER) == null || !((AbstractInferencer)ctx.getAttribute(INFERENCER)).getInferStatementsFlag())
+					return StatementIterator.EMPTY;
+				long reificationId = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
+				ExplainAllIter ret = new ExplainAllIter(ctx, options, reificationId, subj, pred, obj, 0);
+				ret.predicate = explainId;
+				ctx.iterators.put(reificationId, ret);
+				return ret;
 			}
 			// create task associated with the predicate
 			// allocate a request scope id
 			long reificationId = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
-			
-			// create a Task instance and pass the iterator of the statements from the target graph
-			ExplainIter ret = new ExplainIter(ctx, reificationId, subj, pred, obj, 
-					isExplicit, isDerivedFromSameAs, aContext);
-			// access the inferencers and the repository connection from systemoptions
-			ret.infer = infer;
-			ret.conn = conn;
-			ret.init();
+			ExplainIter ret = createExplainIter(ctx, options, reificationId, subj, pred, obj, options.incremental);
+			if (ret == null)
+				return StatementIterator.EMPTY;
 			// store the task into request context  
-			ctx.setAttribute(KEY_STORAGE+reificationId, ret);
+			ctx.iterators.put(reificationId, ret);
 			
 			// return the newly created task instance (it is a valid StatementIterator that could be reevaluated until all solutions are 
 			// generated)
 			return ret;
+		} else if (predicate == proofTreeId) {
+			if (objects == null || (objects.length != 3 && objects.length != 4))
+				return StatementIterator.EMPTY;
+			long subj = objects[0];
+			long pred = objects[1];
+			long obj = objects[2];
+			if (subj <= 0 || obj <= 0 || pred <= 0)
+				return StatementIterator.EMPTY;
+			int maxDepth = options.maxDepth;
+			if (objects.length == 4) {
+				// optional depth limit as a fourth argument
+				Value value = (objects[3] > 0) ? pluginConnection.getEntities().get(objects[3]) : null;
+				if (!(value instanceof Literal))
+					return StatementIterator.EMPTY;
+				maxDepth = ((Literal)value).intValue();
+			}
+			if (ctx.getAttribute(INFERENCER) == null || !((AbstractInferencer)ctx.getAttribute(INFERENCER)).getInferStatementsFlag())
+				return StatementIterator.EMPTY;
+			long reificationId = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
+			ProofTreeIter ret = new ProofTreeIter(ctx, options, reificationId, maxDepth);
+			ret.build(subj, pred, obj);
+			ctx.iterators.put(reificationId, ret);
+			return ret;
+		} else if (predicate == shortestProofId) {
+			if (objects == null || objects.length != 3)
+				return StatementIterator.EMPTY;
+			long subj = objects[0];
+			long pred = objects[1];
+			long obj = objects[2];
+			if (subj <= 0 || obj <= 0 || pred <= 0)
+				return StatementIterator.EMPTY;
+			if (ctx.getAttribute(INFERENCER) == null || !((AbstractInferencer)ctx.getAttribute(INFERENCER)).getInferStatementsFlag())
+				return StatementIterator.EMPTY;
+			long reificationId = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
+			ShortestProofIter ret = new ShortestProofIter(ctx, options, reificationId);
+			ret.build(subj, pred, obj);
+			ctx.iterators.put(reificationId, ret);
+			return ret;
+		} else if (predicate == ruleCountId || predicate == isDerivableId) {
+			if (objects == null || objects.length != 3)
+				return StatementIterator.EMPTY;
+			long subj = objects[0];
+			long pred = objects[1];
+			long obj = objects[2];
+			if (subj <= 0 || obj <= 0 || pred <= 0)
+				return StatementIterator.EMPTY;
+			if (ctx.getAttribute(INFERENCER) == null || !((AbstractInferencer)ctx.getAttribute(INFERENCER)).getInferStatementsFlag())
+				return StatementIterator.EMPTY;
+			long reificationId = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
+			RuleCountIter ret = new RuleCountIter(ctx, options, reificationId, subj, pred, obj);
+			if (predicate == isDerivableId) {
+				// stop the inferencer at the first solution that is not self-referential
+				ret.predicate = isDerivableId;
+				ret.maxSolutions = 1;
+			}
+			ret.count();
+			ctx.iterators.put(reificationId, ret);
+			return ret;
+		} else if (predicate == supportsId) {
+			if (objects == null || (objects.length != 3 && objects.length != 4))
+				return StatementIterator.EMPTY;
+			long subj = objects[0];
+			long pred = objects[1];
+			long obj = objects[2];
+			if (subj <= 0 || obj <= 0 || pred <= 0)
+				return StatementIterator.EMPTY;
+			// optional depth limit as a fourth argument, the direct conclusions only by default
+			int maxDepth = 1;
+			if (objects.length == 4) {
+				Value value = (objects[3] > 0) ? pluginConnection.getEntities().get(objects[3]) : null;
+				if (!(value instanceof Literal))
+					return StatementIterator.EMPTY;
+				maxDepth = ((Literal)value).intValue();
+			}
+			if (ctx.getAttribute(INFERENCER) == null || !((AbstractInferencer)ctx.getAttribute(INFERENCER)).getInferStatementsFlag())
+				return StatementIterator.EMPTY;
+			long reificationId = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
+			SupportsIter ret = new SupportsIter(ctx, options, reificationId, subj, pred, obj, maxDepth);
+			ctx.iterators.put(reificationId, ret);
+			return ret;
+		} else if (predicate == explainAllId) {
+			// optional predicate and graph filters, an unbound filter matches any
+			if (objects == null || objects.length > 2)
+				return StatementIterator.EMPTY;
+			long pred = (objects.length > 0) ? objects[0] : 0;
+			long graph = (objects.length > 1) ? objects[1] : 0;
+			if (pred < 0 || graph < 0)
+				return StatementIterator.EMPTY;
+			if (ctx.getAttribute(INFERENCER) == null || !((AbstractInferencer)ctx.getAttribute(INFERENCER)).getInferStatementsFlag())
+				return StatementIterator.EMPTY;
+			long reificationId = pluginConnection.getEntities().put(SimpleValueFactory.getInstance().createBNode(), Scope.REQUEST);
+			ExplainAllIter ret = new ExplainAllIter(ctx, options, reificationId, pred, graph);
+			ctx.iterators.put(reificationId, ret);
+			return ret;
 		}
 		return null;
 	}
-	
-	class ExplainIter extends StatementIterator implements ReportSupportedSolution {
-		class Solution {
-			String rule;
-			ArrayList<long[]> premises;
-			Solution(String rule, ArrayList<long[]> premises) {
-				this.rule = rule;
-				this.premises = premises;
-			}
-			public String toString() {
-				StringBuilder builder = new StringBuilder();
-				builder.append("rule:").append(rule).append("\n");
-				for (long[] p : premises) {
-					builder.append(p[0]).append(",").append(p[1]).append(",");
-					builder.append(p[2]).append(",").append(p[3]).append("\n");
-				}
-				return builder.toString();
-			}
-			@Override
-			public boolean equals(Object oObj) {
-				if (!(oObj instanceof Solution))
-					return false;
-				Solution other = (Solution)oObj;
-				if (other == this)
-					return true;
-				if (!other.rule.equals(this.rule))
-					return false;
-				
-				if (other.premises.size() != this.premises.size())
-					return false;
 
-				//crosscheck
-				for (long[] p : this.premises) {
-					boolean exists = false;
-					for (long[] o : other.premises) {
-						if (o[0] == p[0] && o[1] == p[1] && o[2] == p[2] && o[3]== p[3] && o[4] == p[4]) {
-							exists = true;
-							break;
-						}
-					}
-					if (!exists)
-						return false;
-				}
-				return true;
-			}
-		}
-		// the request context that stores the instance and the options for that iterator (current inferencer, repository connection etc)
-		ContextImpl ctx;
-		// the key assigned to that instance to it can be retrieved from the context
-		String key;
-		// this the the Value(Request scoped bnode) designating the currently running instance (used to fetch the task from the context if multiple instances are 
-		// evaluated within same query0
-		long reificationId;
-		// instance of the inference to work with
-		AbstractInferencer infer;
-		// connection to the raw data to get only the AXIOM statements
-		AbstractRepositoryConnection conn;
-		long subj, pred, obj;
-		boolean isExplicit = false;
-		boolean isDerivedFromSameAs = false;
+	/**
+	 * checks whether the statement is explicit and creates an initialized iterator over its solutions
+	 * @return null if the inferencer is not active
+	 */
+	ExplainIter createExplainIter(ContextImpl ctx, ExplainOptions options, long reificationId, long subj, long pred, long obj, boolean incremental) {
+		ExplainIter ret = prepareExplainIter(ctx, options, reificationId, subj, pred, obj, incremental);
+		if (ret != null && !ret.ready)
+			computeExplainIter(ret);
+		return ret;
+	}
+
+	/**
+	 * the first half of createExplainIter(): takes the solutions from the shared cache or checks whether
+	 * the statement is explicit, the iterator is ready unless the inferencer has to be run by computeExplainIter()
+	 * @return null if the inferencer is not active
+	 */
+	ExplainIter prepareExplainIter(ContextImpl ctx, ExplainOptions options, long reificationId, long subj, long pred, long obj, boolean incremental) {
+		// a context if an explicit exists
 		long aContext = 0;
-		ArrayList<Solution> solutions = new ArrayList<Solution>();
-		Iterator<Solution> iter;
-		Solution current = null;
-		int currentNo = -1;
-		long[] values = null;
-		public ExplainIter(ContextImpl ctx2, long reificationId2, long subj, long pred, long obj, boolean isExplicit,
-				boolean isDerivedFromSameAs, long aContext) {
-			ctx = ctx2;
-			reificationId = reificationId2;
-			this.subj = subj;
-			this.pred = pred;
-			this.obj = obj;
-			this.isExplicit = isExplicit;
-			this.isDerivedFromSameAs = isDerivedFromSameAs;
-			this.aContext = aContext;
-			this.subject = reificationId;
-			this.predicate = explainId;
+		AbstractInferencer infer = (AbstractInferencer)ctx.getAttribute(INFERENCER);
+		if (infer.getInferStatementsFlag() == false)
+			return null;
+
+		AbstractRepositoryConnection conn = (AbstractRepositoryConnection)ctx.getAttribute(REPOSITORY_CONNECTION);
+
+		// reuse the solutions computed by a previous query
+		// the collapsed or filtered solutions are not shared with the queries that need all of them
+		boolean complete = !incremental && !options.collapseSameAs && options.ruleFilter == null && options.graphFilter == null;
+		TripleKey key = (complete && explanations.isEnabled()) ? new TripleKey(subj, pred, obj) : null;
+		PremiseArena cached = (key != null) ? explanations.get(key) : null;
+		// then the persisted index, which has the implicit statements only
+		if (cached == null && complete && index.isAvailable()) {
+			cached = index.get(subj, pred, obj, ruleNames);
+			if (cached != null)
+				metrics.count(ProofMetrics.INDEX_HIT);
+		}
+		if (cached != null) {
+			ExplainIter ret = new ExplainIter(ctx, options, reificationId, subj, pred, obj, false, false, 0);
+			ret.infer = infer;
+			ret.conn = conn;
+			ret.initFrom(cached);
+			ret.ready = true;
+			return ret;
 		}
-		public void init() {
-			if (!isExplicit) {
-				infer.isSupported(subj, pred, obj, 0, 0, this);
-				iter = solutions.iterator();
-				if (iter.hasNext())
-					current = iter.next();
-				if (current != null) {
-					currentNo = 0;
-				}
-			} else {
-				ArrayList<long[]> arr = new ArrayList<long[]>();
-				arr.add(new long[] {subj, pred, obj, aContext});
-				current = new Solution("explicit", arr);
-				currentNo = 0;
-				iter = new Iterator<Solution>() {
-
-					@Override
-					public boolean hasNext() {
-						return false;
-					}
 
-					@Override
-					public Solution next() {
-						return null;
-					}
-					
-				};
+		// handle an explicit statement
+		boolean isExplicit = false;
+		boolean isDerivedFromSameAs = false;
+		{
+			long start = metrics.start();
+			StatementIdIterator iter = conn.getStatements(subj, pred, obj, StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS | StatementIdIterator.INFERRED_STATEMENT_STATUS);
+			try {
+				isExplicit = iter.hasNext();
+				aContext = iter.context;
+				// handle if explicit comes from sameAs
+				isDerivedFromSameAs = 0 != (iter.status & StatementIdIterator.SKIP_ON_REINFER_STATEMENT_STATUS);
+			} finally {
+				iter.close();
+				metrics.stop(ProofMetrics.EXPLICIT_CHECK, start);
 			}
 		}
-		@Override
-		public boolean report(String ruleName, QueryResultIterator q) {
-			logger.debug("report rule {} for {},{},{}", ruleName, this.subj, this.pred, this.obj);
-			while (q.hasNext()) {
+		// create a Task instance and pass the iterator of the statements from the target graph
+		ExplainIter ret = new ExplainIter(ctx, options, reificationId, subj, pred, obj, 
+				isExplicit, isDerivedFromSameAs, aContext);
+		// access the inferencers and the repository connection from systemoptions
+		ret.infer = infer;
+		ret.conn = conn;
+		ret.incremental = incremental;
+		ret.cacheKey = key;
+		ret.cacheEpoch = ctx.cacheEpoch;
+		return ret;
+	}
+
+	/**
+	 * the second half of createExplainIter(): runs the inferencer and shares the solutions if they are complete
+	 */
+	void computeExplainIter(ExplainIter ret) {
+		ret.init();
+		ret.ready = true;
+		// in incremental mode the solutions are not known yet
+		if (ret.handoff == null)
+			statistics.record(PredicateStatistics.EXPLAIN, ret.pred, ret.solutions.premiseCount());
+		// incomplete solutions are not shared, nor those too large for the heap
+		if (ret.cacheKey != null && !ret.truncated && !ret.solutions.isSpilled())
+			explanations.put(ret.cacheKey, ret.toEntry(), ret.cacheEpoch);
+	}
+
+	/**
+	 * the iterators whose current premise is fetched by the accessor predicates (rule, subject, predicate etc.)
+	 */
+	abstract class PremiseIter extends StatementIterator {
+		// this the the Value(Request scoped bnode) designating the currently running instance
+		long reificationId;
+		// the settings of the pattern, those of its options node or of the request
+		ExplainOptions options;
+
+		abstract boolean hasCurrent();
+		// removes the iterator from the request context when it is closed
+		void release(ContextImpl ctx) {
+			if (reificationId != 0)
+				ctx.iterators.remove(reificationId, this);
+		}
+		abstract int currentRuleIndex();
+		String currentRule() {
+			return ruleNames.name(currentRuleIndex());
+		}
+		// subject, predicate, object and context of the current premise
+		abstract long value(int index);
+		// subject, predicate and object of the statement explained by the current premise
+		abstract long explained(int index);
+		// false if the rows have no premises, e.g. those of pr:ruleCount
+		boolean hasPremises() {
+			return true;
+		}
+		// true if a limit has stopped the inferencer before it reported all solutions of the current statement
+		boolean isTruncated() {
+			return false;
+		}
+	}
+
+	/**
+	 * counts the derivations of a statement by rule without keeping their premises. The premises of a
+	 * reported solution are compared with the statement to skip the self-referential solutions and their
+	 * key (without contexts, which are not resolved) drops the duplicates, the same premises matched in a
+	 * different order
+	 *
+	 * with maxSolutions 1 it is the check of pr:isDerivable, the inferencer is stopped by the first
+	 * solution and there is a single row with its rule
+	 */
+	class RuleCountIter extends PremiseIter implements ReportSupportedSolution {
+		ContextImpl ctx;
+		long subj, pred, obj;
+		// derivations by rule index
+		long[] counts = new long[16];
+		long total = 0;
+		long maxSolutions;
+		// the rule indices with derivations, in the order they were first reported
+		int[] rules = new int[8];
+		int ruleCount = 0;
+		int pos = -1;
+		ExplainBudget budget = null;
+		boolean truncated = false;
+		// the rules counted, null for all
+		Set<String> ruleFilter;
+		// the keys of the derivations counted, while the inferencer runs
+		SolutionKeySet seen = null;
+		long[] packed = new long[4 * SolutionKeySet.PREMISE_WIDTH];
+
+		RuleCountIter(ContextImpl ctx, ExplainOptions options, long reificationId, long subj, long pred, long obj) {
+			this.ctx = ctx;
+			this.options = options;
+			this.reificationId = reificationId;
+			this.subj = subj;
+			this.pred = pred;
+			this.obj = obj;
+			this.subject = reificationId;
+			this.predicate = ruleCountId;
+			this.maxSolutions = options.maxSolutions;
+			this.ruleFilter = options.ruleFilter;
+		}
+
+		void count() {
+			AbstractRepositoryConnection conn = (AbstractRepositoryConnection)ctx.getAttribute(REPOSITORY_CONNECTION);
+			long start = metrics.start();
+			boolean isExplicit;
+			try (StatementIdIterator iter = conn.getStatements(subj, pred, obj, StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS | StatementIdIterator.INFERRED_STATEMENT_STATUS)) {
+				isExplicit = iter.hasNext();
+			} finally {
+				metrics.stop(ProofMetrics.EXPLICIT_CHECK, start);
+			}
+			if (isExplicit) {
+				add(RuleNames.EXPLICIT_INDEX, 1);
+				return;
+			}
+			// the solutions of a statement explained by a previous query tell whether it is derivable
+			if (maxSolutions == 1 && ruleFilter == null && explanations.isEnabled()) {
+				PremiseArena cached = explanations.get(new TripleKey(subj, pred, obj));
+				if (cached != null) {
+					if (cached.solutionCount() > 0)
+						add(cached.rule(0), 1);
+					return;
+				}
+			}
+			budget = new ExplainBudget(options.timeout, options.maxPremises);
+			seen = new SolutionKeySet(options.spillThreshold);
+			start = metrics.start();
+			try {
+				((AbstractInferencer)ctx.getAttribute(INFERENCER)).isSupported(subj, pred, obj, 0, 0, this);
+			} finally {
+				metrics.stop(ProofMetrics.INFERENCE, start);
+				seen.release();
+				seen = null;
+			}
+		}
+
+		@Override
+		public boolean report(String ruleName, QueryResultIterator q) {
+			if (ruleFilter != null && !ruleFilter.contains(ruleName))
+				return false;
+			int ruleIndex = ruleNames.indexOf(ruleName);
+			long derivations = 0;
+			while (q.hasNext()) {
+				if (budget.exceeded()) {
+					truncated = true;
+					break;
+				}
 				if (q instanceof StatementSource) {
-					StatementSource source = (StatementSource)q;
-					Iterator<StatementIdIterator> sol = source.solution();
+					Iterator<StatementIdIterator> sol = ((StatementSource)q).solution();
 					boolean isSame = false;
-					ArrayList<long[]> aSolution = new ArrayList<long[]>();
+					int count = 0;
 					while (sol.hasNext()) {
 						StatementIdIterator iter = sol.next();
-						// try finding an existing explicit or in-context with same subj, pred and obj
-						try(StatementIdIterator ctxIter = conn.getStatements(iter.subj, iter.pred, iter.obj, 0, contextMask)) {
-							while (ctxIter.hasNext()) {
-								if (ctxIter.context != SystemGraphs.EXPLICIT_GRAPH.getId()) {
-									iter.context = ctxIter.context;
-									iter.status = ctxIter.status;
-									break;
+						if (iter.subj == subj && iter.pred == pred && iter.obj == obj)
+							isSame = true;
+						if ((count + 1) * SolutionKeySet.PREMISE_WIDTH > packed.length)
+							packed = Arrays.copyOf(packed, packed.length * 2);
+						int offset = count * SolutionKeySet.PREMISE_WIDTH;
+						packed[offset] = iter.subj;
+						packed[offset + 1] = iter.pred;
+						packed[offset + 2] = iter.obj;
+						packed[offset + 3] = 0;
+						packed[offset + 4] = 0;
+						count++;
+					}
+					budget.visit(count);
+					if (!isSame)
+						rulePatterns.record(ruleIndex, pred, packed, count);
+					if (isSame) {
+						metrics.count(ProofMetrics.SELF_REFERENTIAL_SKIPPED);
+					} else if (!seen.add(ruleIndex, packed, 0, count)) {
+						metrics.count(ProofMetrics.DUPLICATE_REJECTED);
+					} else {
+						derivations++;
+						if (maxSolutions > 0 && total + derivations >= maxSolutions)
+							break;
+					}
+				}
+				q.next();
+			}
+			if (derivations > 0)
+				add(ruleIndex, derivations);
+			// returning true stops the inferencer
+			return truncated || (maxSolutions > 0 && total >= maxSolutions);
+		}
+
+		private void add(int ruleIndex, long derivations) {
+			if (ruleIndex >= counts.length)
+				counts = Arrays.copyOf(counts, Math.max(ruleIndex + 1, counts.length * 2));
+			if (counts[ruleIndex] == 0) {
+				if (ruleCount == rules.length)
+					rules = Arrays.copyOf(rules, rules.length * 2);
+				rules[ruleCount++] = ruleIndex;
+			}
+			counts[ruleIndex] += derivations;
+			total += derivations;
+		}
+
+		@Override
+		public boolean next() {
+			if (pos + 1 < ruleCount) {
+				pos++;
+				return true;
+			}
+			pos = ruleCount;
+			return false;
+		}
+
+		@Override
+		public void close() {
+			pos = ruleCount;
+			release(ctx);
+		}
+
+		@Override
+		boolean hasCurrent() {
+			return pos >= 0 && pos < ruleCount;
+		}
+
+		@Override
+		boolean hasPremises() {
+			return false;
+		}
+
+		@Override
+		boolean isTruncated() {
+			// pr:isDerivable stops at the first solution by design, pr:ruleCount with any maxSolutions does not
+			return truncated || (predicate != isDerivableId && maxSolutions > 0 && total >= maxSolutions);
+		}
+
+		@Override
+		int currentRuleIndex() {
+			return rules[pos];
+		}
+
+		long currentCount() {
+			return counts[rules[pos]];
+		}
+
+		@Override
+		long value(int index) {
+			return 0;
+		}
+
+		@Override
+		long explained(int index) {
+			return (index == 0) ? subj : (index == 1) ? pred : obj;
+		}
+	}
+
+	/**
+	 * the implicit statements with a derivation that uses a given statement as a premise, the reverse of pr:explain
+	 *
+	 * the rules are opaque to the plugin, so the candidates are the implicit statements that contain the subject or
+	 * the object of the premise at any position, found by index lookups. Those whose predicate no rule is known to
+	 * derive from a premise with the predicate of the premise are skipped (see RulePatterns) and each of the others
+	 * is verified by running the inferencer until it reports a solution with the premise. A verified conclusion is
+	 * searched in turn as a premise of the next level, up to the depth limit. The candidates are verified as the
+	 * query reads the rows, within the result (maxSolutions), candidate (searchNodes) and time budgets
+	 */
+	class SupportsIter extends PremiseIter implements ReportSupportedSolution {
+		ContextImpl ctx;
+		AbstractRepositoryConnection conn;
+		AbstractInferencer infer;
+		int maxDepth;
+		// the premises whose conclusions are still to be searched: subject, predicate, object and depth
+		ArrayDeque<long[]> frontier = new ArrayDeque<long[]>();
+		// the premise searched now and its candidate conclusions, 3 longs each
+		long[] premise;
+		long[] candidates = new long[64 * 3];
+		int candidateCount = 0;
+		int candidatePos = 0;
+		// the conclusions found so far, not searched twice
+		HashSet<TripleKey> found = new HashSet<TripleKey>();
+		// the candidates of the premise searched now, reused for each premise: a candidate that does not
+		// use one premise may still use another one
+		HashSet<TripleKey> collected = new HashSet<TripleKey>();
+		// the predicate of the candidate being verified
+		long verifying;
+		// the current row: the conclusion, its rule and the premise it was found for
+		long[] conclusion = new long[3];
+		long[] rowPremise;
+		int rowRule;
+		int rowDepth;
+		boolean hasRow = false;
+		// set by report() to the rule of a solution that contains the premise
+		int supportingRule;
+		// premises of the solution being reported, packed for the rule patterns
+		long[] packed = new long[4 * SolutionKeySet.PREMISE_WIDTH];
+		long maxResults;
+		int maxCandidates;
+		long results = 0;
+		int verified = 0;
+		ExplainBudget budget;
+		Set<String> ruleFilter;
+		boolean truncated = false;
+		boolean closed = false;
+
+		SupportsIter(ContextImpl ctx, ExplainOptions options, long reificationId, long subj, long pred, long obj, int maxDepth) {
+			this.ctx = ctx;
+			this.options = options;
+			this.reificationId = reificationId;
+			this.subject = reificationId;
+			this.predicate = supportsId;
+			this.conn = (AbstractRepositoryConnection)ctx.getAttribute(REPOSITORY_CONNECTION);
+			this.infer = (AbstractInferencer)ctx.getAttribute(INFERENCER);
+			this.maxDepth = maxDepth;
+			this.maxResults = options.maxSolutions;
+			this.maxCandidates = options.searchNodes;
+			this.ruleFilter = options.ruleFilter;
+			this.budget = new ExplainBudget(options.timeout, 0);
+			if (maxDepth > 0)
+				frontier.add(new long[] {subj, pred, obj, 0});
+		}
+
+		/**
+		 * collects the implicit statements that share the subject or the object of the premise and that a rule
+		 * may derive from it
+		 */
+		private void collect(long[] next) {
+			premise = next;
+			candidateCount = 0;
+			candidatePos = 0;
+			collected.clear();
+			long[] entities = (next[0] == next[2]) ? new long[] {next[0]} : new long[] {next[0], next[2]};
+			for (long e : entities) {
+				if (e <= 0)
+					continue;
+				for (int position = 0; position < 3; position++) {
+					long s = (position == 0) ? e : 0, p = (position == 1) ? e : 0, o = (position == 2) ? e : 0;
+					try (StatementIdIterator iter = conn.getStatements(s, p, o, StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS)) {
+						while (iter.hasNext()) {
+							if ((iter.status & StatementIdIterator.INFERRED_STATEMENT_STATUS) != 0
+									&& !(iter.subj == next[0] && iter.pred == next[1] && iter.obj == next[2])
+									&& rulePatterns.mayDerive(next[1], iter.pred)) {
+								TripleKey key = new TripleKey(iter.subj, iter.pred, iter.obj);
+								if (!found.contains(key) && collected.add(key)) {
+									if (verified + candidateCount >= maxCandidates) {
+										truncated = true;
+										return;
+									}
+									if ((candidateCount + 1) * 3 > candidates.length)
+										candidates = Arrays.copyOf(candidates, candidates.length * 2);
+									candidates[candidateCount * 3] = iter.subj;
+									candidates[candidateCount * 3 + 1] = iter.pred;
+									candidates[candidateCount * 3 + 2] = iter.obj;
+									candidateCount++;
 								}
-								ctxIter.next();
 							}
-							ctxIter.close();
+							iter.next();
 						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the rule of a solution of the statement that contains the current premise, -1 if there is none
+		 */
+		private int verify(long s, long p, long o) {
+			// a statement that is also explicit does not depend on the premise
+			try (StatementIdIterator iter = conn.getStatements(s, p, o, StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS | StatementIdIterator.INFERRED_STATEMENT_STATUS)) {
+				if (iter.hasNext())
+					return -1;
+			}
+			supportingRule = -1;
+			verifying = p;
+			long start = metrics.start();
+			try {
+				infer.isSupported(s, p, o, 0, 0, this);
+			} finally {
+				metrics.stop(ProofMetrics.INFERENCE, start);
+			}
+			return supportingRule;
+		}
+
+		@Override
+		public boolean report(String ruleName, QueryResultIterator q) {
+			if (ruleFilter != null && !ruleFilter.contains(ruleName))
+				return false;
+			int ruleIndex = ruleNames.indexOf(ruleName);
+			while (q.hasNext()) {
+				if (budget.exceeded()) {
+					truncated = true;
+					return true;
+				}
+				if (q instanceof StatementSource) {
+					Iterator<StatementIdIterator> sol = ((StatementSource)q).solution();
+					boolean supported = false;
+					int count = 0;
+					while (sol.hasNext()) {
+						StatementIdIterator iter = sol.next();
+						if (iter.subj == premise[0] && iter.pred == premise[1] && iter.obj == premise[2])
+							supported = true;
+						if ((count + 1) * SolutionKeySet.PREMISE_WIDTH > packed.length)
+							packed = Arrays.copyOf(packed, packed.length * 2);
+						packed[count * SolutionKeySet.PREMISE_WIDTH] = iter.subj;
+						packed[count * SolutionKeySet.PREMISE_WIDTH + 1] = iter.pred;
+						packed[count * SolutionKeySet.PREMISE_WIDTH + 2] = iter.obj;
+						count++;
+					}
+					rulePatterns.record(ruleIndex, verifying, packed, count);
+					if (supported) {
+						// returning true stops the inferencer
+						supportingRule = ruleIndex;
+						return true;
+					}
+				}
+				q.next();
+			}
+			return false;
+		}
+
+		@Override
+		public boolean next() {
+			hasRow = false;
+			while (!closed) {
+				if (candidatePos < candidateCount) {
+					if ((maxResults > 0 && results >= maxResults) || budget.exceeded()) {
+						truncated = true;
+						break;
+					}
+					int at = candidatePos++ * 3;
+					long s = candidates[at], p = candidates[at + 1], o = candidates[at + 2];
+					verified++;
+					int rule = verify(s, p, o);
+					if (rule < 0 || !found.add(new TripleKey(s, p, o)))
+						continue;
+					conclusion[0] = s;
+					conclusion[1] = p;
+					conclusion[2] = o;
+					rowPremise = premise;
+					rowRule = rule;
+					rowDepth = (int)premise[3] + 1;
+					results++;
+					if (rowDepth < maxDepth)
+						frontier.add(new long[] {s, p, o, rowDepth});
+					hasRow = true;
+					return true;
+				}
+				// once a budget is reached the candidates collected so far are still verified
+				long[] next = truncated ? null : frontier.poll();
+				if (next == null)
+					break;
+				collect(next);
+			}
+			return false;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			hasRow = false;
+			release(ctx);
+		}
+
+		@Override
+		boolean hasCurrent() {
+			return hasRow;
+		}
+
+		@Override
+		int currentRuleIndex() {
+			return rowRule;
+		}
+
+		@Override
+		long value(int index) {
+			return (index < 3) ? conclusion[index] : SystemGraphs.IMPLICIT_GRAPH.getId();
+		}
+
+		@Override
+		long explained(int index) {
+			return rowPremise[index];
+		}
+
+		@Override
+		boolean isTruncated() {
+			return truncated;
+		}
+
+		int currentDepth() {
+			return rowDepth;
+		}
+
+		@Override
+		public AbstractRepositoryConnection getConnection() {
+			return conn;
+		}
+	}
+
+	/**
+	 * pr:explainRow binds the subject to the current premise as an RDF-star triple, so a premise row takes a single
+	 * pattern instead of pr:subject, pr:predicate and pr:object. While a premise is current its triple is also the
+	 * state variable of the premise iterator, for pr:rule, pr:context and the other accessors
+	 *
+	 * the triple of a premise is registered once per request. Several pr:explainRow patterns may bind the same
+	 * triple at the same time (a join over the premises), the accessors then use the one that bound it last and
+	 * the others again once it has moved on
+	 */
+	class ExplainRowIter extends StatementIterator {
+		ContextImpl ctx;
+		PremiseIter premises;
+		Entities entities;
+		// the triple of the current premise, 0 if none, and the iterator that bound the same triple before
+		long rowId = 0;
+		ExplainRowIter nextSameRow = null;
+
+		ExplainRowIter(ContextImpl ctx, PremiseIter premises, Entities entities) {
+			this.ctx = ctx;
+			this.premises = premises;
+			this.entities = entities;
+			this.predicate = explainRowId;
+		}
+
+		@Override
+		public boolean next() {
+			unregister();
+			while (premises.next()) {
+				long id = tripleOf(premises.value(0), premises.value(1), premises.value(2));
+				if (id == 0)
+					continue;
+				rowId = id;
+				nextSameRow = ctx.rows.get(id);
+				ctx.rows.put(id, this);
+				subject = id;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * the id of the triple, 0 if the statement cannot be one
+		 */
+		private long tripleOf(long s, long p, long o) {
+			TripleCache triples = ctx.getRowTriples();
+			int e = triples.find(s, p, o);
+			if (e >= 0)
+				return triples.value(e);
+			Value subj = entities.get(s);
+			Value pred = entities.get(p);
+			Value obj = entities.get(o);
+			long id = 0;
+			if (subj instanceof Resource && pred instanceof IRI && obj != null)
+				id = entities.put(SimpleValueFactory.getInstance().createTriple((Resource)subj, (IRI)pred, obj), Scope.REQUEST);
+			triples.put(s, p, o, id, 0);
+			return id;
+		}
+
+		private void unregister() {
+			if (rowId == 0)
+				return;
+			ExplainRowIter head = ctx.rows.get(rowId);
+			if (head == this) {
+				if (nextSameRow != null)
+					ctx.rows.put(rowId, nextSameRow);
+				else
+					ctx.rows.remove(rowId, this);
+			} else {
+				// another iterator bound the triple after this one
+				for (ExplainRowIter iter = head; iter != null; iter = iter.nextSameRow) {
+					if (iter.nextSameRow == this) {
+						iter.nextSameRow = nextSameRow;
+						break;
+					}
+				}
+			}
+			rowId = 0;
+			nextSameRow = null;
+		}
+
+		@Override
+		public void close() {
+			unregister();
+			premises.close();
+		}
+
+		@Override
+		public AbstractRepositoryConnection getConnection() {
+			return premises.getConnection();
+		}
+	}
+
+	/**
+	 * expands the implicit premises of a statement recursively, up to a depth limit, and iterates over
+	 * the premises of all solutions in the tree. Each distinct statement becomes a single node, the
+	 * statements already in the tree (including those on the current path, which would form a cycle such
+	 * as owl_invOfBySymProp - owl_SymPropByInverse) are not expanded again
+	 */
+	class ProofTreeIter extends PremiseIter {
+		ContextImpl ctx;
+		int maxDepth;
+		int maxNodes;
+		// node, parent node, depth and rule index for each row
+		int[] rows = new int[16 * 4];
+		// subject, predicate, object and context for each row
+		long[] premises = new long[16 * 4];
+		// subject, predicate and object of the statement of each node, node 1 is at 0
+		long[] statements = new long[16 * 3];
+		int rowCount = 0;
+		int pos = -1;
+		int nodes = 0;
+		HashMap<TripleKey, Integer> nodeOf = new HashMap<TripleKey, Integer>();
+		// set when the node limit or the limits of an explained statement were reached
+		boolean truncated = false;
+
+		ProofTreeIter(ContextImpl ctx, ExplainOptions options, long reificationId, int maxDepth) {
+			this.ctx = ctx;
+			this.options = options;
+			this.reificationId = reificationId;
+			this.maxDepth = maxDepth;
+			this.maxNodes = options.maxTreeNodes;
+			this.subject = reificationId;
+			this.predicate = proofTreeId;
+		}
+
+		void build(long subj, long pred, long obj) {
+			expand(new TripleKey(subj, pred, obj), 0, 0);
+			statistics.record(PredicateStatistics.TREE, pred, rowCount);
+		}
+
+		private void expand(TripleKey key, int parent, int depth) {
+			int node = newNode(key);
+			PremiseArena solutions = solutionsOf(key);
+			for (int s = 0; s < solutions.solutionCount(); s++) {
+				for (int p = solutions.start(s); p < solutions.end(s); p++)
+					addRow(node, parent, depth, solutions.rule(s), solutions, p);
+			}
+			if (depth >= maxDepth)
+				return;
+			for (int p = 0; p < solutions.premiseCount(); p++) {
+				TripleKey premise = new TripleKey(solutions.get(p, 0), solutions.get(p, 1), solutions.get(p, 2));
+				if (nodes >= maxNodes) {
+					truncated = true;
+					return;
+				}
+				if (nodeOf.containsKey(premise))
+					continue;
+				PremiseArena sub = solutionsOf(premise);
+				// explicit premises are the leaves of the tree
+				if (sub.solutionCount() == 0 || (sub.solutionCount() == 1 && sub.rule(0) == RuleNames.EXPLICIT_INDEX))
+					continue;
+				expand(premise, node, depth + 1);
+			}
+		}
+
+		int newNode(TripleKey key) {
+			int node = ++nodes;
+			nodeOf.put(key, node);
+			if (node * 3 > statements.length)
+				statements = Arrays.copyOf(statements, statements.length * 2);
+			statements[node * 3 - 3] = key.subj;
+			statements[node * 3 - 2] = key.pred;
+			statements[node * 3 - 1] = key.obj;
+			return node;
+		}
+
+		/**
+		 * the solutions of a statement, memoized within the request
+		 */
+		PremiseArena solutionsOf(TripleKey key) {
+			HashMap<TripleKey, PremiseArena> proofs = ctx.getProofs();
+			PremiseArena solutions = proofs.get(key);
+			if (solutions == null) {
+				ExplainIter explain = createExplainIter(ctx, options, 0, key.subj, key.pred, key.obj, false);
+				if (explain != null) {
+					// the solutions are kept by the request, the key set and the budget are released
+					solutions = explain.detachSolutions();
+					truncated |= explain.truncated;
+					explain.close();
+				} else {
+					solutions = new PremiseArena();
+				}
+				proofs.put(key, solutions);
+			}
+			return solutions;
+		}
+
+		void addRow(int node, int parent, int depth, int rule, PremiseArena solutions, int p) {
+			if ((rowCount + 1) * 4 > rows.length) {
+				rows = Arrays.copyOf(rows, rows.length * 2);
+				premises = Arrays.copyOf(premises, premises.length * 2);
+			}
+			int offset = rowCount * 4;
+			rows[offset] = node;
+			rows[offset + 1] = parent;
+			rows[offset + 2] = depth;
+			rows[offset + 3] = rule;
+			for (int i = 0; i < 4; i++)
+				premises[offset + i] = solutions.get(p, i);
+			rowCount++;
+		}
+
+		@Override
+		public boolean next() {
+			if (pos + 1 < rowCount) {
+				pos++;
+				return true;
+			}
+			pos = rowCount;
+			return false;
+		}
+
+		@Override
+		public void close() {
+			pos = rowCount;
+			release(ctx);
+			// the rows are copied, the spilled solutions are not kept for the other trees of the request
+			if (ctx.proofs != null) {
+				Iterator<PremiseArena> iter = ctx.proofs.values().iterator();
+				while (iter.hasNext()) {
+					PremiseArena solutions = iter.next();
+					if (solutions.isSpilled()) {
+						solutions.release();
+						iter.remove();
+					}
+				}
+			}
+		}
+
+		@Override
+		boolean hasCurrent() {
+			return pos >= 0 && pos < rowCount;
+		}
+
+		@Override
+		int currentRuleIndex() {
+			return rows[pos * 4 + 3];
+		}
+
+		@Override
+		long value(int index) {
+			return premises[pos * 4 + index];
+		}
+
+		@Override
+		long explained(int index) {
+			return statements[rows[pos * 4] * 3 - 3 + index];
+		}
+
+		int currentNode() {
+			return rows[pos * 4];
+		}
+
+		@Override
+		boolean isTruncated() {
+			return truncated;
+		}
+
+		int currentParent() {
+			return rows[pos * 4 + 1];
+		}
+
+		int currentDepth() {
+			return rows[pos * 4 + 2];
+		}
+	}
+
+	/**
+	 * the smallest proof of a statement: the tree of solutions with the fewest rule applications down to
+	 * explicit statements, returned in the rows of a proof tree
+	 *
+	 * the cost of an explicit statement is 0 and the cost of a solution is 1 plus the costs of its premises.
+	 * The search is depth-first, with the solutions of each statement tried in the order of a lower bound
+	 * of their cost, and stops a branch as soon as it cannot be better than the best solution so far.
+	 * The statements on the current path are not expanded (cycles), so a cost found below a statement may
+	 * depend on the path to it: it is memoized only when no statement above it on the path was reached,
+	 * otherwise it is searched again from another path. The search gives up the branches that are not
+	 * finished within the node and time budgets
+	 */
+	class ShortestProofIter extends ProofTreeIter {
+		static final int INFINITE = Integer.MAX_VALUE / 2;
+		static final int NOT_ON_PATH = Integer.MAX_VALUE;
+		// the cost and the best solution of the statements searched so far
+		HashMap<TripleKey, int[]> costs = new HashMap<TripleKey, int[]>();
+		// the statements on the current path and their depth
+		HashMap<TripleKey, Integer> onPath = new HashMap<TripleKey, Integer>();
+		// the smallest depth of a statement on the path reached by the last search, NOT_ON_PATH if none,
+		// and the best solution found by it
+		int reachedDepth = NOT_ON_PATH;
+		int searchedSolution = -1;
+		int expanded = 0;
+		int maxExpanded;
+		long deadline;
+
+		ShortestProofIter(ContextImpl ctx, ExplainOptions options, long reificationId) {
+			super(ctx, options, reificationId, Integer.MAX_VALUE);
+			this.predicate = shortestProofId;
+			this.maxExpanded = options.searchNodes;
+			this.deadline = System.currentTimeMillis() + options.searchTimeout;
+		}
+
+		@Override
+		void build(long subj, long pred, long obj) {
+			TripleKey root = new TripleKey(subj, pred, obj);
+			if (search(root, INFINITE) < INFINITE)
+				emit(root, costs.get(root)[1], 0, 0);
+		}
+
+		private boolean exhausted() {
+			if (expanded >= maxExpanded || System.currentTimeMillis() > deadline || Thread.currentThread().isInterrupted()) {
+				truncated = true;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return the cost of the statement, or a value not lower than bound if it cannot be cheaper than bound.
+		 * Sets reachedDepth to the smallest depth of the statements on the path the cost depends on
+		 */
+		private int search(TripleKey key, int bound) {
+			reachedDepth = NOT_ON_PATH;
+			int[] known = costs.get(key);
+			if (known != null)
+				return known[0];
+			Integer pathDepth = onPath.get(key);
+			if (pathDepth != null) {
+				// a cycle, the statement cannot be used in its own proof
+				reachedDepth = pathDepth;
+				return INFINITE;
+			}
+			PremiseArena solutions = solutionsOf(key);
+			if (solutions.solutionCount() == 1 && solutions.rule(0) == RuleNames.EXPLICIT_INDEX) {
+				costs.put(key, new int[] {0, 0});
+				return 0;
+			}
+			if (solutions.solutionCount() == 0) {
+				costs.put(key, new int[] {INFINITE, -1});
+				return INFINITE;
+			}
+			if (exhausted())
+				return INFINITE;
+			expanded++;
+			int depth = onPath.size();
+			onPath.put(key, depth);
+			Integer[] order = new Integer[solutions.solutionCount()];
+			final int[] lowerBounds = new int[order.length];
+			int reached = NOT_ON_PATH;
+			for (int s = 0; s < order.length; s++) {
+				order[s] = s;
+				lowerBounds[s] = lowerBound(solutions, s);
+				if (lowerBounds[s] >= INFINITE)
+					reached = Math.min(reached, pathDepthOfPremise(solutions, s));
+			}
+			Arrays.sort(order, (a, b) -> Integer.compare(lowerBounds[a], lowerBounds[b]));
+			int best = INFINITE;
+			int bestSolution = -1;
+			// set when a solution was not searched to the end because of the bound or the budgets
+			boolean cut = false;
+			for (int i = 0; i < order.length; i++) {
+				int s = order[i];
+				int limit = Math.min(best, bound);
+				if (lowerBounds[s] >= limit) {
+					cut |= limit < best;
+					break;
+				}
+				int cost = 1;
+				for (int p = solutions.start(s); p < solutions.end(s) && cost < limit; p++) {
+					cost = Math.min(INFINITE, cost + search(new TripleKey(solutions.get(p, 0), solutions.get(p, 1), solutions.get(p, 2)), limit - cost));
+					reached = Math.min(reached, reachedDepth);
+				}
+				if (cost < best) {
+					best = cost;
+					bestSolution = s;
+				} else if (cost >= bound) {
+					cut = true;
+				}
+			}
+			onPath.remove(key);
+			// a cycle back to this statement does not depend on the path above it
+			reachedDepth = (reached < depth) ? reached : NOT_ON_PATH;
+			// a solution cheaper than the bound was compared with all others that may be cheaper (within
+			// the budgets), otherwise the cost is exact only if nothing was cut by the bound or the budgets.
+			// A cost that excluded a statement above on the path is exact only for that path
+			if (reachedDepth == NOT_ON_PATH && (best < bound || (!cut && !exhausted())))
+				costs.put(key, new int[] {best, bestSolution});
+			searchedSolution = bestSolution;
+			return best;
+		}
+
+		/**
+		 * the smallest depth of a premise of the solution that is on the current path
+		 */
+		private int pathDepthOfPremise(PremiseArena solutions, int s) {
+			int reached = NOT_ON_PATH;
+			for (int p = solutions.start(s); p < solutions.end(s); p++) {
+				Integer pathDepth = onPath.get(new TripleKey(solutions.get(p, 0), solutions.get(p, 1), solutions.get(p, 2)));
+				if (pathDepth != null)
+					reached = Math.min(reached, pathDepth);
+			}
+			return reached;
+		}
+
+		/**
+		 * 1 plus the known costs of the premises, a premise not searched yet may be explicit
+		 */
+		private int lowerBound(PremiseArena solutions, int s) {
+			int bound = 1;
+			for (int p = solutions.start(s); p < solutions.end(s); p++) {
+				TripleKey premise = new TripleKey(solutions.get(p, 0), solutions.get(p, 1), solutions.get(p, 2));
+				if (onPath.containsKey(premise))
+					return INFINITE;
+				int[] known = costs.get(premise);
+				if (known != null)
+					bound = Math.min(INFINITE, bound + known[0]);
+			}
+			return bound;
+		}
+
+		/**
+		 * adds the rows of the best solution of the statement and then those of its implicit premises.
+		 * The cost of a premise that depends on the path is searched again from the path of the proof
+		 */
+		private void emit(TripleKey key, int s, int parent, int depth) {
+			int node = newNode(key);
+			PremiseArena solutions = solutionsOf(key);
+			for (int p = solutions.start(s); p < solutions.end(s); p++)
+				addRow(node, parent, depth, solutions.rule(s), solutions, p);
+			onPath.put(key, depth);
+			for (int p = solutions.start(s); p < solutions.end(s); p++) {
+				TripleKey premise = new TripleKey(solutions.get(p, 0), solutions.get(p, 1), solutions.get(p, 2));
+				if (nodeOf.containsKey(premise))
+					continue;
+				int[] cost = costs.get(premise);
+				if (cost == null) {
+					int found = search(premise, INFINITE);
+					cost = costs.get(premise);
+					if (cost == null)
+						cost = new int[] {found, (found < INFINITE) ? searchedSolution : -1};
+				}
+				if (cost[0] > 0 && cost[1] >= 0)
+					emit(premise, cost[1], node, depth + 1);
+			}
+			onPath.remove(key);
+		}
+	}
+
+	/**
+	 * explains all implicit statements that match a predicate and a graph filter within a single pattern.
+	 * The statements are read from the indexes and explained one after the other as the query reads the
+	 * premises, all by the query thread: the repository connection of the request must not be used
+	 * concurrently. The premises are returned in the order in which the statements were read
+	 */
+	class ExplainAllIter extends PremiseIter {
+		ContextImpl ctx;
+		AbstractRepositoryConnection conn;
+		// only inferred statements that are not explicit are explained when no named graph is given
+		boolean implicitOnly;
+		StatementIdIterator scan;
+		// the iterator over the premises of the statement explained now
+		ExplainIter currentIter = null;
+		// the predicate filter, 0 for any, and the number of statements explained so far
+		long predFilter;
+		long explainedCount = 0;
+		boolean scanRecorded = false;
+		// the last statement read from the indexes, the same statement may be found in several contexts
+		long lastSubj = 0, lastPred = 0, lastObj = 0;
+		boolean closed = false;
+
+		ExplainAllIter(ContextImpl ctx, ExplainOptions options, long reificationId, long predFilter, long graphFilter) {
+			this(ctx, options, reificationId, 0, predFilter, 0, graphFilter);
+		}
+
+		/**
+		 * also used by pr:explain with unbound arguments, which explains the matching implicit statements
+		 */
+		ExplainAllIter(ContextImpl ctx, ExplainOptions options, long reificationId, long subjFilter, long predFilter, long objFilter, long graphFilter) {
+			this.ctx = ctx;
+			this.options = options;
+			this.reificationId = reificationId;
+			this.subject = reificationId;
+			this.predicate = explainAllId;
+			this.conn = (AbstractRepositoryConnection)ctx.getAttribute(REPOSITORY_CONNECTION);
+			this.predFilter = predFilter;
+			// only the scans by predicate are comparable
+			this.scanRecorded = subjFilter != 0 || objFilter != 0;
+			implicitOnly = graphFilter == 0 || graphFilter == SystemGraphs.IMPLICIT_GRAPH.getId();
+			scan = conn.getStatements(subjFilter, predFilter, objFilter, implicitOnly ? 0 : graphFilter,
+					StatementIdIterator.DELETED_STATEMENT_STATUS | StatementIdIterator.SKIP_ON_BROWSE_STATEMENT_STATUS);
+		}
+
+		/**
+		 * reads the next statement to explain and runs the inferencer for it, unless its solutions are
+		 * in the shared cache or the index
+		 * @return null when there are no more statements
+		 */
+		private ExplainIter nextStatement() {
+			while (scan.hasNext()) {
+				long s = scan.subj, p = scan.pred, o = scan.obj;
+				boolean inferred = (scan.status & StatementIdIterator.INFERRED_STATEMENT_STATUS) != 0;
+				scan.next();
+				if ((implicitOnly && !inferred) || (s == lastSubj && p == lastPred && o == lastObj))
+					continue;
+				lastSubj = s;
+				lastPred = p;
+				lastObj = o;
+				ExplainIter iter = prepareExplainIter(ctx, options, 0, s, p, o, false);
+				if (iter == null)
+					return null;
+				// a statement that is both inferred and explicit is not implicit
+				if (implicitOnly && (iter.isExplicit || (iter.solutions.solutionCount() > 0 && iter.solutions.rule(0) == RuleNames.EXPLICIT_INDEX))) {
+					iter.close();
+					continue;
+				}
+				explainedCount++;
+				if (!iter.ready)
+					computeExplainIter(iter);
+				return iter;
+			}
+			if (!scanRecorded) {
+				// recorded once, when the scan completes
+				scanRecorded = true;
+				statistics.record(PredicateStatistics.SCAN, (predFilter != 0) ? predFilter : PredicateStatistics.ANY, explainedCount);
+			}
+			return null;
+		}
+
+		@Override
+		public boolean next() {
+			if (closed)
+				return false;
+			while (true) {
+				if (currentIter != null) {
+					if (currentIter.next())
+						return true;
+					currentIter.close();
+				}
+				currentIter = nextStatement();
+				if (currentIter == null)
+					return false;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (currentIter != null)
+				currentIter.close();
+			currentIter = null;
+			scan.close();
+			release(ctx);
+		}
+
+		@Override
+		boolean hasCurrent() {
+			return currentIter != null && currentIter.hasCurrent();
+		}
+
+		@Override
+		int currentRuleIndex() {
+			return currentIter.currentRuleIndex();
+		}
+
+		@Override
+		long value(int index) {
+			return currentIter.value(index);
+		}
+
+		@Override
+		long explained(int index) {
+			return currentIter.explained(index);
+		}
+
+		@Override
+		boolean isTruncated() {
+			return currentIter.isTruncated();
+		}
+
+		@Override
+		public AbstractRepositoryConnection getConnection() {
+			return conn;
+		}
+	}
+
+	class ExplainIter extends PremiseIter implements ReportSupportedSolution {
+		// the request context that stores the instance and the options for that iterator (current inferencer, repository connection etc)
+		ContextImpl ctx;
+		// the Value(Request scoped bnode) designating the currently running instance (used to fetch the task from the context if multiple instances are 
+		// evaluated within same query) is kept in reificationId
+		// instance of the inference to work with
+		AbstractInferencer infer;
+		// connection to the raw data to get only the AXIOM statements
+		AbstractRepositoryConnection conn;
+		long subj, pred, obj;
+		boolean isExplicit = false;
+		boolean isDerivedFromSameAs = false;
+		long aContext = 0;
+		// the solutions found, shared with the explanation cache and not modified when taken from there.
+		// Released on close() if spilled out of the heap
+		PremiseArena solutions;
+		// in incremental mode the solutions are passed from the producer thread through that buffer
+		SolutionHandoff handoff = null;
+		long maxSolutions = 0;
+		boolean incremental = false;
+		// set when the inferencer was stopped before reporting all solutions
+		boolean truncated = false;
+		// the time and premise limits, started when the inferencer is run
+		ExplainBudget budget = null;
+		long timeout;
+		long maxPremises;
+		// map the premises to the representatives of their owl:sameAs classes
+		boolean collapseSameAs;
+		// the rules reported and the graphs one of the premises must come from, null for all
+		Set<String> ruleFilter;
+		long[] graphFilter;
+		// keys of the solutions found so far, to drop the duplicates. Spilled with the solutions
+		SolutionKeySet seen;
+		// premises of the solution being reported, packed for the key set
+		long[] packed = new long[4 * SolutionKeySet.PREMISE_WIDTH];
+		// offsets in packed of the premises missing from the context cache
+		int[] pending = new int[4];
+		boolean closed = false;
+		// set once the solutions are computed or taken from the shared cache
+		boolean ready = false;
+		// where the complete solutions are shared, null if they are not
+		TripleKey cacheKey = null;
+		long cacheEpoch = 0;
+		// index of the current solution and of its current premise in solutions
+		int current = -1;
+		int premise = -1;
+		public ExplainIter(ContextImpl ctx2, ExplainOptions options, long reificationId2, long subj, long pred, long obj, boolean isExplicit,
+				boolean isDerivedFromSameAs, long aContext) {
+			ctx = ctx2;
+			this.options = options;
+			reificationId = reificationId2;
+			this.subj = subj;
+			this.pred = pred;
+			this.obj = obj;
+			this.isExplicit = isExplicit;
+			this.isDerivedFromSameAs = isDerivedFromSameAs;
+			this.aContext = aContext;
+			this.subject = reificationId;
+			this.predicate = explainId;
+			this.maxSolutions = options.maxSolutions;
+			this.timeout = options.timeout;
+			this.maxPremises = options.maxPremises;
+			this.collapseSameAs = options.collapseSameAs;
+			this.ruleFilter = options.ruleFilter;
+			this.graphFilter = options.graphFilter;
+			this.solutions = new PremiseArena(options.spillThreshold);
+			this.seen = new SolutionKeySet(options.spillThreshold);
+		}
+		public void init() {
+			if (!isExplicit) {
+				budget = new ExplainBudget(timeout, maxPremises);
+				if (incremental) {
+					// run the inferencer in a separate thread which is resumed each time the buffer is drained. The
+					// connection of the request is used by that thread only while the query thread waits for it.
+					// The producer waits for its turn at most the timeout of the request
+					final SolutionHandoff h = new SolutionHandoff(options.bufferSize, (timeout > 0) ? timeout : options.idleTimeout);
+					final ExplainBudget b = budget;
+					handoff = h;
+					// the timeout counts only while the producer has the turn, a cancelled query stops it
+					b.pause();
+					b.watch(Thread.currentThread());
+					getProducers().execute(() -> {
+						Throwable error = null;
+						try {
+							if (h.awaitTurn()) {
+								b.resume();
+								infer.isSupported(subj, pred, obj, 0, 0, this);
+							} else if (h.isExpired()) {
+								truncated = true;
+							}
+						} catch (Throwable t) {
+							error = t;
+						} finally {
+							h.finish(error);
+						}
+					});
+				} else {
+					// not timed in incremental mode, where the producer also waits for the query
+					long start = metrics.start();
+					try {
+						infer.isSupported(subj, pred, obj, 0, 0, this);
+					} finally {
+						metrics.stop(ProofMetrics.INFERENCE, start);
+					}
+				}
+			} else {
+				solutions.add(RuleNames.EXPLICIT_INDEX, subj, pred, obj, aContext, 0);
+			}
+		}
+		/**
+		 * takes the solutions from the shared cache instead of running the inferencer
+		 */
+		void initFrom(PremiseArena cached) {
+			if (maxSolutions > 0 && cached.solutionCount() > maxSolutions) {
+				cached = cached.copy((int)maxSolutions);
+				truncated = true;
+			}
+			solutions = cached;
+		}
+		/**
+		 * hands the solutions over to the caller, who releases them if spilled. close() leaves them alone then
+		 */
+		PremiseArena detachSolutions() {
+			PremiseArena detached = solutions;
+			solutions = new PremiseArena();
+			return detached;
+		}
+		/**
+		 * a compact copy of the solutions for the shared cache
+		 */
+		PremiseArena toEntry() {
+			return solutions.copy(solutions.solutionCount());
+		}
+		@Override
+		boolean hasCurrent() {
+			return current >= 0 && premise >= 0;
+		}
+		@Override
+		int currentRuleIndex() {
+			return solutions.rule(current);
+		}
+		@Override
+		long value(int index) {
+			return solutions.get(premise, index);
+		}
+		@Override
+		long explained(int index) {
+			return (index == 0) ? subj : (index == 1) ? pred : obj;
+		}
+		@Override
+		boolean isTruncated() {
+			return truncated;
+		}
+		@Override
+		public boolean report(String ruleName, QueryResultIterator q) {
+			logger.debug("report rule {} for {},{},{}", ruleName, this.subj, this.pred, this.obj);
+			// closed while the producer was waiting
+			if (closed)
+				return true;
+			// the solutions of the other rules are dropped before any of their premises is read
+			if (ruleFilter != null && !ruleFilter.contains(ruleName))
+				return false;
+			int ruleIndex = ruleNames.indexOf(ruleName);
+			long start = metrics.start();
+			try {
+				return report(ruleIndex, q);
+			} finally {
+				metrics.ruleStop(ruleIndex, start);
+			}
+		}
+
+		private boolean report(int ruleIndex, QueryResultIterator q) {
+			while (q.hasNext()) {
+				// returning true stops the inferencer
+				if (budget != null && budget.exceeded()) {
+					truncated = true;
+					return true;
+				}
+				if (q instanceof StatementSource) {
+					StatementSource source = (StatementSource)q;
+					Iterator<StatementIdIterator> sol = source.solution();
+					boolean isSame = false;
+					int count = 0;
+					while (sol.hasNext()) {
+						StatementIdIterator iter = sol.next();
 						if (iter.subj == this.subj && iter.pred == this.pred && iter.obj == this.obj)
 							isSame = true;
-						aSolution.add(new long[] {iter.subj, iter.pred, iter.obj, iter.context, iter.status});
+						int offset = count * SolutionKeySet.PREMISE_WIDTH;
+						if (offset + SolutionKeySet.PREMISE_WIDTH > packed.length)
+							packed = Arrays.copyOf(packed, packed.length * 2);
+						packed[offset] = iter.subj;
+						packed[offset + 1] = iter.pred;
+						packed[offset + 2] = iter.obj;
+						packed[offset + 3] = iter.context;
+						packed[offset + 4] = iter.status;
+						count++;
 					}
-					Solution solution = new Solution(ruleName, aSolution);
-					logger.debug("isSelfReferentioal {} for solution {}", isSame, solution);
+					if (budget != null)
+						budget.visit(count);
+					logger.debug("isSelfReferentioal {} for solution of {}", isSame, ruleIndex);
 					if (!isSame) {
-						if (!solutions.contains(solution)) {
+						rulePatterns.record(ruleIndex, this.pred, packed, count);
+						// the solutions that differ only in aliases get the same key
+						if (collapseSameAs)
+							collapseSameAs(count);
+						// the contexts are needed for the key so they are resolved before the duplicates check
+						long start = metrics.start();
+						resolveContexts(count);
+						metrics.stop(ProofMetrics.CONTEXT_LOOKUP, start);
+						if (graphFilter != null && !fromFilteredGraph(count)) {
+							q.next();
+							continue;
+						}
+						start = metrics.start();
+						boolean added = seen.add(ruleIndex, packed, 0, count);
+						metrics.stop(ProofMetrics.DUPLICATE_CHECK, start);
+						if (added) {
 							logger.debug("added");
-							solutions.add(solution);
+							metrics.count(ProofMetrics.SOLUTION_EMITTED);
+							metrics.ruleSolution(ruleIndex);
+							solutions.add(ruleIndex, packed, 0, count);
+							if (handoff != null) {
+								// the query may keep the producer waiting, that time is not counted
+								budget.pause();
+								boolean more = handoff.offer();
+								budget.resume();
+								// returning true stops the inferencer
+								if (!more) {
+									// the query did not ask for the next solutions in time
+									truncated |= handoff.isExpired();
+									return true;
+								}
+							}
+							if (maxSolutions > 0 && seen.size() >= maxSolutions) {
+								truncated = true;
+								return true;
+							}
 						} else {
 							logger.debug("already added");
+							metrics.count(ProofMetrics.DUPLICATE_REJECTED);
 						}
 					} else {
 						logger.debug("not added - self referential");
+						metrics.count(ProofMetrics.SELF_REFERENTIAL_SKIPPED);
 					}
 				}
 				q.next();
@@ -480,30 +2446,154 @@ public class ProofPlugin extends PluginBase implements StatelessPlugin, SystemPl
 			return false;
 		}
 
+		/**
+		 * replaces the context and status of the packed premises with those of an existing explicit or
+		 * in-context statement with the same subj, pred and obj. The premises not in the request cache
+		 * are collected first and each distinct one is looked up in the indexes once
+		 */
+		private void resolveContexts(int count) {
+			TripleCache cache = ctx.getPremiseContexts(graphFilter);
+			int misses = 0;
+			for (int i = 0; i < count; i++) {
+				int offset = i * SolutionKeySet.PREMISE_WIDTH;
+				int e = cache.find(packed[offset], packed[offset + 1], packed[offset + 2]);
+				if (e < 0) {
+					if (misses == pending.length)
+						pending = Arrays.copyOf(pending, pending.length * 2);
+					pending[misses++] = offset;
+				} else {
+					applyContext(cache, e, offset);
+				}
+			}
+			for (int i = 0; i < misses; i++) {
+				int offset = pending[i];
+				long s = packed[offset], p = packed[offset + 1], o = packed[offset + 2];
+				// the same premise may be pending more than once within a solution
+				int e = cache.find(s, p, o);
+				if (e < 0) {
+					long foundContext = 0;
+					int foundStatus = TripleCache.NOT_FOUND;
+					if (graphFilter != null) {
+						// only the allowed graphs are looked up, one index lookup each
+						for (int g = 0; g < graphFilter.length && foundStatus == TripleCache.NOT_FOUND; g++) {
+							try(StatementIdIterator ctxIter = conn.getStatements(s, p, o, graphFilter[g], contextMask)) {
+								if (ctxIter.hasNext()) {
+									foundContext = graphFilter[g];
+									foundStatus = ctxIter.status;
+								}
+							}
+						}
+					} else {
+						try(StatementIdIterator ctxIter = conn.getStatements(s, p, o, 0, contextMask)) {
+							while (ctxIter.hasNext()) {
+								if (ctxIter.context != SystemGraphs.EXPLICIT_GRAPH.getId()) {
+									foundContext = ctxIter.context;
+									foundStatus = ctxIter.status;
+									break;
+								}
+								ctxIter.next();
+							}
+						}
+					}
+					e = cache.put(s, p, o, foundContext, foundStatus);
+				}
+				applyContext(cache, e, offset);
+			}
+		}
+
+		/**
+		 * @return true if one of the packed premises was resolved to one of the allowed graphs
+		 */
+		private boolean fromFilteredGraph(int count) {
+			for (int i = 0; i < count; i++) {
+				long context = packed[i * SolutionKeySet.PREMISE_WIDTH + 3];
+				for (long g : graphFilter) {
+					if (context == g)
+						return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * replaces the subject, predicate and object of the packed premises with the representatives of their classes
+		 */
+		private void collapseSameAs(int count) {
+			SameAsClasses classes = ctx.getSameAs();
+			for (int i = 0; i < count; i++) {
+				int offset = i * SolutionKeySet.PREMISE_WIDTH;
+				// an owl:sameAs premise becomes (rep owl:sameAs rep), the aliases are bound on request
+				packed[offset] = classes.representative(packed[offset], conn);
+				packed[offset + 1] = classes.representative(packed[offset + 1], conn);
+				packed[offset + 2] = classes.representative(packed[offset + 2], conn);
+			}
+		}
+
+		private void applyContext(TripleCache cache, int e, int offset) {
+			if (cache.status(e) != TripleCache.NOT_FOUND) {
+				packed[offset + 3] = cache.value(e);
+				packed[offset + 4] = cache.status(e);
+			}
+		}
+
 		@Override
 		public void close() {
-			current = null;
-			solutions = null;
+			closed = true;
+			current = -1;
+			premise = -1;
+			if (seen != null)
+				seen.release();
+			seen = null;
+			release(ctx);
+			// the producer of an incremental explain checks the budget for each solution
+			if (budget != null)
+				budget.cancel();
+			if (handoff != null)
+				handoff.cancel();
+			// the cached arenas are never spilled
+			if (solutions.isSpilled())
+				solutions.release();
 		}
 
+		/**
+		 * moves to the next premise reading the packed solutions by index, allocates nothing
+		 */
 		@Override
 		public boolean next() {
-			while (current != null) {
-				if (currentNo < current.premises.size()) {
-					values = current.premises.get(currentNo);
-					currentNo ++;
+			if (closed)
+				return false;
+			if (current >= 0 && premise + 1 < solutions.end(current)) {
+				premise++;
+				return true;
+			}
+			while (nextSolution()) {
+				if (solutions.start(current) < solutions.end(current)) {
+					premise = solutions.start(current);
 					return true;
-				} else {
-					values = null;
-					currentNo = 0;
-					if (iter.hasNext())
-						current = iter.next();
-					else
-						current = null;
 				}
 			}
+			current = -1;
+			premise = -1;
 			return false;
 		}
+		private boolean nextSolution() {
+			if (handoff != null) {
+				// the producer is parked while the query thread runs, so once all solutions were read
+				// their storage is reused for the next ones
+				if (current + 1 >= solutions.solutionCount()) {
+					solutions.clear();
+					current = -1;
+				}
+				// the interruption of the thread that reads the solutions stops the producer
+				budget.watch(Thread.currentThread());
+				if (!handoff.take())
+					return false;
+			} else if (current + 1 >= solutions.solutionCount()) {
+				return false;
+			}
+			current++;
+			return true;
+		}
 		@Override
 		public AbstractRepositoryConnection getConnection() {
 			return conn;
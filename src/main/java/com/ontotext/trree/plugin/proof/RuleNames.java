@@ -0,0 +1,48 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * assigns small int indices to the rule names reported by the inferencer so the solutions
+ * can refer to their rule without keeping or comparing strings
+ *
+ * the set of rules is bounded by the ruleset so the indices are kept for the lifetime of the plugin
+ */
+class RuleNames {
+	// the pseudo rule used for explicit statements, always at index 0
+	static final String EXPLICIT = "explicit";
+	static final int EXPLICIT_INDEX = 0;
+
+	private final ConcurrentHashMap<String, Integer> indices = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[0];
+
+	RuleNames() {
+		indexOf(EXPLICIT);
+	}
+
+	int indexOf(String name) {
+		Integer index = indices.get(name);
+		if (index != null)
+			return index;
+		synchronized (this) {
+			index = indices.get(name);
+			if (index != null)
+				return index;
+			String[] arr = Arrays.copyOf(names, names.length + 1);
+			arr[names.length] = name;
+			// publish the name before the index so name() never misses it
+			names = arr;
+			indices.put(name, arr.length - 1);
+			return arr.length - 1;
+		}
+	}
+
+	String name(int index) {
+		return names[index];
+	}
+
+	int size() {
+		return names.length;
+	}
+}
@@ -0,0 +1,130 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+
+/**
+ * the predicates of the premises (the rule body) and of the conclusions (the rule head) of each rule, used by
+ * pr:supports to skip the candidate conclusions that no rule derives from a premise with a given predicate
+ *
+ * the rules are compiled into the inferencer and are not visible to the plugin, so the patterns are learned
+ * from the solutions it reports. A premise predicate that is also the subject or object of another premise is a
+ * variable of the rule (e.g. the property of rdfs:domain) and matches any predicate, and so does the body of a
+ * rule seen with more than MAX_PREDICATES premise predicates. In the same way a conclusion predicate that is the
+ * subject or object of a premise, or any of more than MAX_PREDICATES, matches any predicate. A conclusion
+ * predicate no rule was seen to derive is always a candidate
+ *
+ * the patterns are read without locking, a rule is updated by copying its arrays
+ */
+class RulePatterns {
+	static final int MAX_PREDICATES = 16;
+
+	private static class Pattern {
+		volatile long[] body = new long[0];
+		volatile boolean anyBody = false;
+		volatile long[] heads = new long[0];
+		volatile boolean anyHead = false;
+	}
+
+	// by rule index
+	private volatile Pattern[] rules = new Pattern[16];
+
+	/**
+	 * records a solution of the rule
+	 * @param premises packed premises, SolutionKeySet.PREMISE_WIDTH longs each
+	 */
+	void record(int rule, long conclusionPredicate, long[] premises, int count) {
+		Pattern pattern = pattern(rule);
+		if (!pattern.anyBody) {
+			for (int i = 0; i < count; i++) {
+				long predicate = premises[i * SolutionKeySet.PREMISE_WIDTH + 1];
+				if (isNode(predicate, premises, count, i)) {
+					pattern.anyBody = true;
+					break;
+				}
+				if (!contains(pattern.body, predicate))
+					addBody(pattern, predicate);
+			}
+		}
+		if (!pattern.anyHead) {
+			if (isNode(conclusionPredicate, premises, count, -1))
+				pattern.anyHead = true;
+			else if (!contains(pattern.heads, conclusionPredicate))
+				addHead(pattern, conclusionPredicate);
+		}
+	}
+
+	/**
+	 * false if the rules seen to derive statements with the conclusion predicate have no premise with the premise predicate
+	 */
+	boolean mayDerive(long premisePredicate, long conclusionPredicate) {
+		Pattern[] patterns = rules;
+		boolean known = false;
+		for (Pattern pattern : patterns) {
+			if (pattern == null || (!pattern.anyHead && !contains(pattern.heads, conclusionPredicate)))
+				continue;
+			known = true;
+			if (pattern.anyBody || contains(pattern.body, premisePredicate))
+				return true;
+		}
+		return !known;
+	}
+
+	private Pattern pattern(int rule) {
+		Pattern[] patterns = rules;
+		Pattern pattern = (rule < patterns.length) ? patterns[rule] : null;
+		return (pattern != null) ? pattern : newPattern(rule);
+	}
+
+	private synchronized Pattern newPattern(int rule) {
+		Pattern[] patterns = Arrays.copyOf(rules, Math.max(rule + 1, rules.length));
+		if (patterns[rule] == null)
+			patterns[rule] = new Pattern();
+		// published by the volatile write
+		rules = patterns;
+		return patterns[rule];
+	}
+
+	private synchronized void addBody(Pattern pattern, long predicate) {
+		if (contains(pattern.body, predicate))
+			return;
+		if (pattern.body.length >= MAX_PREDICATES) {
+			pattern.anyBody = true;
+			return;
+		}
+		long[] body = Arrays.copyOf(pattern.body, pattern.body.length + 1);
+		body[pattern.body.length] = predicate;
+		pattern.body = body;
+	}
+
+	private synchronized void addHead(Pattern pattern, long predicate) {
+		if (contains(pattern.heads, predicate))
+			return;
+		if (pattern.heads.length >= MAX_PREDICATES) {
+			pattern.anyHead = true;
+			return;
+		}
+		long[] heads = Arrays.copyOf(pattern.heads, pattern.heads.length + 1);
+		heads[pattern.heads.length] = predicate;
+		pattern.heads = heads;
+	}
+
+	/**
+	 * true if the value is the subject or object of a premise other than skip
+	 */
+	private static boolean isNode(long value, long[] premises, int count, int skip) {
+		for (int i = 0; i < count; i++) {
+			int offset = i * SolutionKeySet.PREMISE_WIDTH;
+			if (i != skip && (premises[offset] == value || premises[offset + 2] == value))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean contains(long[] values, long value) {
+		for (long v : values) {
+			if (v == value)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,126 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+
+import com.ontotext.trree.AbstractRepositoryConnection;
+import com.ontotext.trree.StatementIdIterator;
+
+/**
+ * request scoped map from entities to the representative of their owl:sameAs equivalence class,
+ * the member with the smallest id
+ *
+ * the class of an entity is read once from the owl:sameAs statements of the entity (their closure is
+ * materialized by the inferencer) and all its members are mapped at once, so a clique of n aliases
+ * costs a single scan. May be used by the producer thread of an incremental explain, hence synchronized
+ */
+class SameAsClasses {
+	private final long sameAsId;
+	// open-addressing map entity -> representative, 0 marks a free slot
+	private long[] keys = new long[64];
+	private long[] values = new long[64];
+	private int size = 0;
+	// members of the class being read
+	private long[] members = new long[16];
+
+	SameAsClasses(long sameAsId) {
+		this.sameAsId = sameAsId;
+	}
+
+	/**
+	 * @return the representative of the class of the entity, the entity itself if it has no aliases
+	 */
+	synchronized long representative(long id, AbstractRepositoryConnection conn) {
+		if (id <= 0 || sameAsId == 0)
+			return id;
+		long rep = get(id);
+		if (rep != 0)
+			return rep;
+		int count = readClass(id, conn);
+		rep = id;
+		for (int i = 0; i < count; i++)
+			rep = Math.min(rep, members[i]);
+		put(id, rep);
+		for (int i = 0; i < count; i++)
+			put(members[i], rep);
+		return rep;
+	}
+
+	/**
+	 * @return the entity and its aliases, the representative first
+	 */
+	synchronized long[] aliases(long id, AbstractRepositoryConnection conn) {
+		if (id <= 0 || sameAsId == 0)
+			return new long[] {id};
+		int count = readClass(id, conn);
+		long[] ret = new long[count + 1];
+		ret[0] = id;
+		System.arraycopy(members, 0, ret, 1, count);
+		Arrays.sort(ret);
+		// drop the duplicates, the entity may be its own alias
+		int n = 0;
+		for (int i = 0; i < ret.length; i++) {
+			if (n == 0 || ret[i] != ret[n - 1])
+				ret[n++] = ret[i];
+		}
+		return Arrays.copyOf(ret, n);
+	}
+
+	private int readClass(long id, AbstractRepositoryConnection conn) {
+		int count = 0;
+		try (StatementIdIterator iter = conn.getStatements(id, sameAsId, 0, StatementIdIterator.DELETED_STATEMENT_STATUS)) {
+			while (iter.hasNext()) {
+				if (iter.obj > 0) {
+					if (count == members.length)
+						members = Arrays.copyOf(members, members.length * 2);
+					members[count++] = iter.obj;
+				}
+				iter.next();
+			}
+		}
+		return count;
+	}
+
+	private long get(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key)
+				return values[i];
+			i = (i + 1) & mask;
+		}
+		return 0;
+	}
+
+	private void put(long key, long value) {
+		if ((size + 1) * 2 > keys.length)
+			rehash();
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != 0) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys, oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new long[oldKeys.length * 2];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,134 @@
+package com.ontotext.trree.plugin.proof;
+
+import com.ontotext.trree.sdk.PluginException;
+
+/**
+ * bounded hand-off between a producer thread that runs the inferencer and the query thread
+ * that consumes the solutions
+ *
+ * the two sides never run at the same time: the consumer hands the turn to the producer
+ * when it has consumed all solutions and waits, the producer adds up to capacity solutions
+ * and then hands the turn back and parks until asked for more. That way the repository
+ * connection, the inferencer and the storage of the solutions are never accessed concurrently
+ * and the consumer may reuse that storage while the producer is parked
+ *
+ * the producer parks at most maxIdle milliseconds, so an iterator dropped without being closed does not
+ * keep it forever: it then stops as if a limit was reached and the solutions found so far are still taken
+ */
+class SolutionHandoff {
+	private final int capacity;
+	// solutions added by the producer and not taken by the consumer yet
+	private int available = 0;
+	// true while the producer is allowed to run
+	private boolean producerTurn = false;
+	// set by the producer when there will be no more solutions
+	private boolean done = false;
+	// set by the consumer when it is not interested in more solutions
+	private boolean cancelled = false;
+	private Throwable failure = null;
+	// how long the producer waits for its turn in milliseconds, 0 means no limit
+	private final long maxIdle;
+	// set by the producer when it gave up waiting for its turn
+	private boolean expired = false;
+
+	SolutionHandoff(int capacity, long maxIdle) {
+		this.capacity = Math.max(1, capacity);
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * producer side: blocks until the consumer asks for solutions, at most maxIdle
+	 * @return false if the consumer has cancelled in the meantime or has not asked in time
+	 */
+	synchronized boolean awaitTurn() {
+		long deadline = (maxIdle > 0) ? System.currentTimeMillis() + maxIdle : 0;
+		try {
+			while (!producerTurn && !cancelled) {
+				if (deadline == 0) {
+					wait();
+					continue;
+				}
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					expired = true;
+					return false;
+				}
+				wait(left);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelled = true;
+		}
+		return !cancelled;
+	}
+
+	/**
+	 * true if the producer stopped because the consumer did not ask for more solutions in time
+	 */
+	synchronized boolean isExpired() {
+		return expired;
+	}
+
+	/**
+	 * producer side: called after a solution was added, hands the turn back to the consumer if the buffer is full
+	 * @return false if the consumer is no longer interested and the producer should stop
+	 */
+	synchronized boolean offer() {
+		if (!awaitTurn())
+			return false;
+		available++;
+		if (available >= capacity) {
+			producerTurn = false;
+			notifyAll();
+			return awaitTurn();
+		}
+		return true;
+	}
+
+	/**
+	 * producer side: marks the end of the solutions, must always be called when the producer exits
+	 */
+	synchronized void finish(Throwable error) {
+		failure = error;
+		done = true;
+		producerTurn = false;
+		notifyAll();
+	}
+
+	/**
+	 * consumer side: takes the next solution, running the producer if none is available
+	 * @return false when there are no more solutions
+	 */
+	synchronized boolean take() {
+		while (available == 0) {
+			if (done) {
+				if (failure != null)
+					throw new PluginException("Failed to explain statement", failure);
+				return false;
+			}
+			if (cancelled)
+				return false;
+			producerTurn = true;
+			notifyAll();
+			try {
+				while (producerTurn && !done)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel();
+				return false;
+			}
+		}
+		available--;
+		return true;
+	}
+
+	/**
+	 * consumer side: releases the producer, it will stop on its next offer()
+	 */
+	synchronized void cancel() {
+		cancelled = true;
+		available = 0;
+		notifyAll();
+	}
+}
@@ -0,0 +1,255 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+
+/**
+ * a set of canonical solution keys used to drop the duplicate solutions reported by the inferencer
+ *
+ * the key of a solution is its rule index followed by the premises sorted as tuples so it does
+ * not depend on the order in which the rule has matched them. Keys are packed one after
+ * another in a single long[] and indexed by an open-addressing table of offsets, which makes
+ * the check O(m log m) in the number of premises instead of a scan over all solutions so far
+ *
+ * like the PremiseArena of the same solutions, once the premises exceed the spill threshold the keys
+ * and the table are moved to buffers out of the heap. The owner must call release() when it is done
+ */
+class SolutionKeySet {
+	// subject, predicate, object, context and status of a premise
+	static final int PREMISE_WIDTH = 5;
+
+	// [rule, premise count, premises...] for each key
+	private long[] keys = new long[64];
+	private long keysSize = 0;
+	// offset + 1 of a key in keys, 0 for a free slot
+	private int[] slots = new int[16];
+	private long[] hashes = new long[16];
+	private int tableSize = 16;
+	private int size = 0;
+	// the number of premises above which the keys are spilled, 0 means never
+	private final int spillThreshold;
+	private long premises = 0;
+	// the keys and the table (offset + 1 and hash for each slot) once spilled, the arrays are not used then
+	private PremiseSpill.Longs spilledKeys = null;
+	private PremiseSpill.Longs spilledTable = null;
+	// the key being added, sorted before it is looked up
+	private long[] candidate = new long[2 + 4 * PREMISE_WIDTH];
+
+	SolutionKeySet() {
+		this(0);
+	}
+
+	SolutionKeySet(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * @param premises packed premises, PREMISE_WIDTH longs each
+	 * @return true if the solution was not in the set
+	 */
+	boolean add(int rule, long[] premises, int offset, int count) {
+		int len = 2 + count * PREMISE_WIDTH;
+		if (len > candidate.length)
+			candidate = new long[Math.max(len, candidate.length * 2)];
+		candidate[0] = rule;
+		candidate[1] = count;
+		System.arraycopy(premises, offset, candidate, 2, count * PREMISE_WIDTH);
+		sortPremises(candidate, 2, count);
+		long hash = hash(candidate, 0, len);
+
+		int mask = tableSize - 1;
+		int i = spread(hash) & mask;
+		long slot;
+		while ((slot = slot(i)) != 0) {
+			if (slotHash(i) == hash && sameKey(slot - 1, len))
+				return false;
+			i = (i + 1) & mask;
+		}
+		long start = keysSize;
+		if (spilledKeys == null) {
+			if (keysSize + len > keys.length)
+				keys = Arrays.copyOf(keys, (int)Math.max(keys.length * 2L, keysSize + len));
+			System.arraycopy(candidate, 0, keys, (int)start, len);
+		} else {
+			for (int k = 0; k < len; k++)
+				spilledKeys.set(start + k, candidate[k]);
+		}
+		keysSize += len;
+		setSlot(i, start + 1, hash);
+		this.premises += count;
+		if (++size * 2 > tableSize)
+			rehash(tableSize * 2);
+		if (spilledKeys == null && spillThreshold > 0 && this.premises > spillThreshold)
+			spill();
+		return true;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		release();
+		Arrays.fill(slots, 0);
+		keysSize = 0;
+		size = 0;
+		premises = 0;
+	}
+
+	boolean isSpilled() {
+		return spilledKeys != null;
+	}
+
+	/**
+	 * returns the off-heap buffers, the set is empty afterwards
+	 */
+	void release() {
+		if (spilledKeys == null)
+			return;
+		spilledKeys.release();
+		spilledTable.release();
+		spilledKeys = null;
+		spilledTable = null;
+		keys = new long[64];
+		slots = new int[16];
+		hashes = new long[16];
+		tableSize = 16;
+		keysSize = 0;
+		size = 0;
+		premises = 0;
+	}
+
+	/**
+	 * moves the keys and the table to the off-heap buffers
+	 */
+	private void spill() {
+		PremiseSpill.Longs spilled = new PremiseSpill.Longs();
+		for (int k = 0; k < keysSize; k++)
+			spilled.set(k, keys[k]);
+		PremiseSpill.Longs table = new PremiseSpill.Longs();
+		table.zero(2L * tableSize);
+		for (int i = 0; i < tableSize; i++) {
+			table.set(2L * i, slots[i]);
+			table.set(2L * i + 1, hashes[i]);
+		}
+		spilledKeys = spilled;
+		spilledTable = table;
+		keys = new long[0];
+		slots = new int[0];
+		hashes = new long[0];
+	}
+
+	private long key(long offset) {
+		return (spilledKeys != null) ? spilledKeys.get(offset) : keys[(int)offset];
+	}
+
+	private long slot(int i) {
+		return (spilledTable != null) ? spilledTable.get(2L * i) : slots[i];
+	}
+
+	private long slotHash(int i) {
+		return (spilledTable != null) ? spilledTable.get(2L * i + 1) : hashes[i];
+	}
+
+	private void setSlot(int i, long offset, long hash) {
+		if (spilledTable != null) {
+			spilledTable.set(2L * i, offset);
+			spilledTable.set(2L * i + 1, hash);
+		} else {
+			slots[i] = (int)offset;
+			hashes[i] = hash;
+		}
+	}
+
+	private boolean sameKey(long offset, int len) {
+		if (key(offset + 1) != candidate[1])
+			return false;
+		for (int i = 0; i < len; i++) {
+			if (key(offset + i) != candidate[i])
+				return false;
+		}
+		return true;
+	}
+
+	private void rehash(int newSize) {
+		int oldSize = tableSize;
+		int mask = newSize - 1;
+		if (spilledTable != null) {
+			PremiseSpill.Longs old = spilledTable;
+			PremiseSpill.Longs table = new PremiseSpill.Longs();
+			table.zero(2L * newSize);
+			for (int j = 0; j < oldSize; j++) {
+				long offset = old.get(2L * j);
+				if (offset == 0)
+					continue;
+				long hash = old.get(2L * j + 1);
+				int i = spread(hash) & mask;
+				while (table.get(2L * i) != 0)
+					i = (i + 1) & mask;
+				table.set(2L * i, offset);
+				table.set(2L * i + 1, hash);
+			}
+			old.release();
+			spilledTable = table;
+			tableSize = newSize;
+			return;
+		}
+		int[] oldSlots = slots;
+		long[] oldHashes = hashes;
+		slots = new int[newSize];
+		hashes = new long[newSize];
+		for (int j = 0; j < oldSize; j++) {
+			if (oldSlots[j] == 0)
+				continue;
+			int i = spread(oldHashes[j]) & mask;
+			while (slots[i] != 0)
+				i = (i + 1) & mask;
+			slots[i] = oldSlots[j];
+			hashes[i] = oldHashes[j];
+		}
+		tableSize = newSize;
+	}
+
+	private static int spread(long hash) {
+		return (int)(hash ^ (hash >>> 32));
+	}
+
+	static long hash(long[] arr, int offset, int len) {
+		long h = 0x9E3779B97F4A7C15L;
+		for (int i = offset; i < offset + len; i++) {
+			h ^= arr[i];
+			h *= 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+		}
+		return h;
+	}
+
+	/**
+	 * insertion sort of the premise tuples, a rule has only a handful of premises
+	 */
+	static void sortPremises(long[] arr, int offset, int count) {
+		for (int i = 1; i < count; i++) {
+			int j = i;
+			while (j > 0 && compare(arr, offset + (j - 1) * PREMISE_WIDTH, offset + j * PREMISE_WIDTH) > 0) {
+				swap(arr, offset + (j - 1) * PREMISE_WIDTH, offset + j * PREMISE_WIDTH);
+				j--;
+			}
+		}
+	}
+
+	private static int compare(long[] arr, int a, int b) {
+		for (int i = 0; i < PREMISE_WIDTH; i++) {
+			int c = Long.compare(arr[a + i], arr[b + i]);
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	private static void swap(long[] arr, int a, int b) {
+		for (int i = 0; i < PREMISE_WIDTH; i++) {
+			long t = arr[a + i];
+			arr[a + i] = arr[b + i];
+			arr[b + i] = t;
+		}
+	}
+}
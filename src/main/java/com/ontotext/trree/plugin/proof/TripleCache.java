@@ -0,0 +1,185 @@
+package com.ontotext.trree.plugin.proof;
+
+import java.util.Arrays;
+
+/**
+ * request scoped cache of a value and a status resolved for a triple (s,p,o)
+ *
+ * it holds the context and status of the premises: the same schema premises (owl:inverseOf,
+ * rdfs:subPropertyOf etc.) take part in many solutions, so each distinct premise is looked up
+ * in the indexes once per request. pr:explainRow keeps the ids of the RDF-star triples it
+ * binds in another one.
+ * The cache is bounded and evicts the least recently used entry. Entries are kept in
+ * parallel primitive arrays, indexed by an open-addressing table and linked in LRU order
+ */
+class TripleCache {
+	static final int DEFAULT_CAPACITY = Integer.getInteger("graphdb.proof.contextCacheSize", 65536);
+	// status of a premise for which no statement in a named graph was found
+	static final int NOT_FOUND = -1;
+
+	private final int capacity;
+	private int size = 0;
+	private long[] subj, pred, obj, value;
+	private int[] status;
+	// LRU list, head is the most recently used entry
+	private int[] prev, next;
+	private int head = -1, tail = -1;
+	// entry + 1, 0 for a free slot
+	private int[] slots;
+
+	TripleCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		int initial = Math.min(this.capacity, 256);
+		subj = new long[initial];
+		pred = new long[initial];
+		obj = new long[initial];
+		value = new long[initial];
+		status = new int[initial];
+		prev = new int[initial];
+		next = new int[initial];
+		slots = new int[tableSize(initial)];
+	}
+
+	/**
+	 * @return the entry for the triple or -1 if it is not cached
+	 */
+	int find(long s, long p, long o) {
+		int mask = slots.length - 1;
+		int i = hash(s, p, o) & mask;
+		while (slots[i] != 0) {
+			int e = slots[i] - 1;
+			if (subj[e] == s && pred[e] == p && obj[e] == o) {
+				touch(e);
+				return e;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * adds the triple, evicting the least recently used one if the cache is full
+	 * @return the entry of the triple
+	 */
+	int put(long s, long p, long o, long v, int st) {
+		int e;
+		if (size < capacity) {
+			if (size == subj.length)
+				grow();
+			e = size++;
+		} else {
+			e = tail;
+			remove(e);
+			unlink(e);
+		}
+		subj[e] = s;
+		pred[e] = p;
+		obj[e] = o;
+		value[e] = v;
+		status[e] = st;
+		linkFirst(e);
+		int mask = slots.length - 1;
+		int i = hash(s, p, o) & mask;
+		while (slots[i] != 0)
+			i = (i + 1) & mask;
+		slots[i] = e + 1;
+		return e;
+	}
+
+	long value(int e) {
+		return value[e];
+	}
+
+	int status(int e) {
+		return status[e];
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		int n = Math.min(capacity, subj.length * 2);
+		subj = Arrays.copyOf(subj, n);
+		pred = Arrays.copyOf(pred, n);
+		obj = Arrays.copyOf(obj, n);
+		value = Arrays.copyOf(value, n);
+		status = Arrays.copyOf(status, n);
+		prev = Arrays.copyOf(prev, n);
+		next = Arrays.copyOf(next, n);
+		slots = new int[tableSize(n)];
+		int mask = slots.length - 1;
+		for (int e = 0; e < size; e++) {
+			int i = hash(subj[e], pred[e], obj[e]) & mask;
+			while (slots[i] != 0)
+				i = (i + 1) & mask;
+			slots[i] = e + 1;
+		}
+	}
+
+	/**
+	 * removes the entry from the table shifting back the entries after it (linear probing)
+	 */
+	private void remove(int e) {
+		int mask = slots.length - 1;
+		int i = hash(subj[e], pred[e], obj[e]) & mask;
+		while (slots[i] != e + 1)
+			i = (i + 1) & mask;
+		slots[i] = 0;
+		int j = (i + 1) & mask;
+		while (slots[j] != 0) {
+			int other = slots[j] - 1;
+			int home = hash(subj[other], pred[other], obj[other]) & mask;
+			// move the entry to the free slot if the slot is between its home and its current position
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				slots[i] = slots[j];
+				slots[j] = 0;
+				i = j;
+			}
+			j = (j + 1) & mask;
+		}
+	}
+
+	private void touch(int e) {
+		if (e != head) {
+			unlink(e);
+			linkFirst(e);
+		}
+	}
+
+	private void unlink(int e) {
+		if (prev[e] >= 0)
+			next[prev[e]] = next[e];
+		else
+			head = next[e];
+		if (next[e] >= 0)
+			prev[next[e]] = prev[e];
+		else
+			tail = prev[e];
+	}
+
+	private void linkFirst(int e) {
+		prev[e] = -1;
+		next[e] = head;
+		if (head >= 0)
+			prev[head] = e;
+		head = e;
+		if (tail < 0)
+			tail = e;
+	}
+
+	private static int tableSize(int entries) {
+		int n = 16;
+		while (n < entries * 2)
+			n <<= 1;
+		return n;
+	}
+
+	private static int hash(long s, long p, long o) {
+		long h = s * 0x9E3779B97F4A7C15L + p;
+		h = h * 0x9E3779B97F4A7C15L + o;
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,34 @@
+package com.ontotext.trree.plugin.proof;
+
+/**
+ * the entity ids of a statement, used as a key of the maps of explained statements
+ */
+final class TripleKey {
+	final long subj, pred, obj;
+
+	TripleKey(long subj, long pred, long obj) {
+		this.subj = subj;
+		this.pred = pred;
+		this.obj = obj;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TripleKey))
+			return false;
+		TripleKey other = (TripleKey)o;
+		return subj == other.subj && pred == other.pred && obj == other.obj;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = subj * 0x9E3779B97F4A7C15L + pred;
+		h = h * 0x9E3779B97F4A7C15L + obj;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return subj + "," + pred + "," + obj;
+	}
+}
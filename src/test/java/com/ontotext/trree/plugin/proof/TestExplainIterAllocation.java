@@ -0,0 +1,62 @@
+package com.ontotext.trree.plugin.proof;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * checks that iterating over the premises of an explained statement and reading them through
+ * the accessors does not allocate
+ */
+public class TestExplainIterAllocation {
+
+	@Test
+	public void testNextDoesNotAllocate() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		ProofPlugin plugin = new ProofPlugin();
+		ProofPlugin.ContextImpl ctx = plugin.new ContextImpl();
+		ProofPlugin.ExplainIter iter = plugin.new ExplainIter(ctx, ctx.options, 1, 10, 11, 12, false, false, 0);
+		int rule = plugin.ruleNames.indexOf("rule_test");
+		long[] premises = new long[3 * SolutionKeySet.PREMISE_WIDTH];
+		for (int s = 0; s < 1000; s++) {
+			for (int p = 0; p < premises.length; p++)
+				premises[p] = s * premises.length + p;
+			iter.solutions.add(rule, premises, 0, 3);
+		}
+
+		// warm up, then measure
+		long sum = iterate(iter, 20);
+		long tid = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(tid);
+		sum += iterate(iter, 100);
+		long allocated = threads.getThreadAllocatedBytes(tid) - before;
+
+		assertTrue("Expected the premises to be read", sum != 0);
+		// allow for the few bytes the measurement itself may need
+		assertTrue("Expected no allocation while iterating, got " + allocated + " bytes", allocated < 1024);
+	}
+
+	private static long iterate(ProofPlugin.ExplainIter iter, int times) {
+		long sum = 0;
+		for (int t = 0; t < times; t++) {
+			iter.current = -1;
+			iter.premise = -1;
+			while (iter.next()) {
+				if (iter.hasCurrent()) {
+					sum += iter.value(0) + iter.value(1) + iter.value(2) + iter.value(3);
+					sum += iter.currentRule().length();
+				}
+			}
+		}
+		return sum;
+	}
+}
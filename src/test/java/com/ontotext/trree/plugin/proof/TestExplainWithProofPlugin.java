@@ -1,16 +1,27 @@
 package com.ontotext.trree.plugin.proof;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import com.ontotext.graphdb.Config;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
 import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.model.vocabulary.OWL;
 import org.eclipse.rdf4j.model.vocabulary.RDFS;
 import org.eclipse.rdf4j.query.Binding;
@@ -53,6 +64,30 @@ public class TestExplainWithProofPlugin {
 			"}\r\n" +
 			"";
 
+	static final SimpleValueFactory VF = SimpleValueFactory.getInstance();
+	static final String FOOD = "http://www.w3.org/TR/2003/PR-owl-guide-20031209/food#";
+	static final String PREFIXES = "PREFIX pr: <http://www.ontotext.com/proof/>\r\n" +
+			"PREFIX food: <http://www.w3.org/TR/2003/PR-owl-guide-20031209/food#>\r\n" +
+			"PREFIX vin: <http://www.w3.org/TR/2003/PR-owl-guide-20031209/wine#>\r\n" +
+			"PREFIX onto: <http://www.ontotext.com/>\r\n" +
+			"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\r\n" +
+			"PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\r\n" +
+			"PREFIX ex: <http://example.com/>\r\n";
+	// (ex:a ex:q ex:b) has two derivations, through ex:p and through ex:r
+	static final String TWO_DERIVATIONS = "@prefix ex: <http://example.com/> .\n" +
+			"@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+			"ex:a ex:p ex:b .\n" +
+			"ex:a ex:r ex:b .\n" +
+			"ex:p rdfs:subPropertyOf ex:q .\n" +
+			"ex:r rdfs:subPropertyOf ex:q .\n";
+	// ex:a1 and ex:a2 are aliases, (ex:a1 ex:q ex:b) is derived through ex:p from either of them
+	static final String SAME_AS = "@prefix ex: <http://example.com/> .\n" +
+			"@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n" +
+			"@prefix owl: <http://www.w3.org/2002/07/owl#> .\n" +
+			"ex:a1 owl:sameAs ex:a2 .\n" +
+			"ex:a1 ex:p ex:b .\n" +
+			"ex:p rdfs:subPropertyOf ex:q .\n";
+
 	@BeforeClass
 	public static void setWorkDir() {
 		System.setProperty("graphdb.home.work", String.valueOf(tmpFolder.getRoot()));
@@ -101,5 +136,695 @@ public class TestExplainWithProofPlugin {
 			rep.shutDown();
 		}
 	}
-}
 
+	@Test
+	public void testProofTree() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-tree", null);
+		try {
+			RepositoryConnection conn = rep.getConnection();
+			try {
+				String treeQuery = "PREFIX pr: <http://www.ontotext.com/proof/>\r\n" +
+						"PREFIX food: <http://www.w3.org/TR/2003/PR-owl-guide-20031209/food#>\r\n" +
+						"PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\r\n" +
+						"select ?node ?parent ?depth ?rule ?subj ?pred ?obj {\r\n" +
+						"     ?tree pr:proofTree (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+						"     ?tree pr:node ?node .\r\n" +
+						"     ?tree pr:parent ?parent .\r\n" +
+						"     ?tree pr:depth ?depth .\r\n" +
+						"     ?tree pr:rule ?rule .\r\n" +
+						"     ?tree pr:subject ?subj .\r\n" +
+						"     ?tree pr:predicate ?pred .\r\n" +
+						"     ?tree pr:object ?obj .\r\n" +
+						"}";
+				TupleQueryResult res = conn.prepareTupleQuery(treeQuery).evaluate();
+				HashSet<String> nodes = new HashSet<String>();
+				nodes.add("0");
+				int count = 0;
+				while (res.hasNext()) {
+					BindingSet bs = res.next();
+					// the rows of a node come after the rows of its parent
+					assertTrue("Expected the parent to be seen before", nodes.contains(bs.getValue("parent").stringValue()));
+					nodes.add(bs.getValue("node").stringValue());
+					if ("1".equals(bs.getValue("node").stringValue()))
+						assertEquals("root depth", "0", bs.getValue("depth").stringValue());
+					count ++;
+				}
+				assertTrue("Expected premises of the root", count > 0);
+				res.close();
+			} finally {
+				conn.close();
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testPartiallyUnboundExplainJoin() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-unbound", null);
+		try {
+			RepositoryConnection conn = rep.getConnection();
+			try {
+				// the implicit statements bind the arguments, the explained statement must be the same
+				String joinQuery = "PREFIX pr: <http://www.ontotext.com/proof/>\r\n" +
+						"PREFIX onto: <http://www.ontotext.com/>\r\n" +
+						"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\r\n" +
+						"select ?s ?o ?es ?eo\r\n" +
+						"from named onto:implicit\r\n" +
+						"{\r\n" +
+						"     ?x pr:explain (?s rdf:type ?o) .\r\n" +
+						"     ?x pr:explainedSubject ?es .\r\n" +
+						"     ?x pr:explainedObject ?eo .\r\n" +
+						"     graph onto:implicit {?s rdf:type ?o}\r\n" +
+						"}";
+				int count = 0;
+				try (TupleQueryResult res = conn.prepareTupleQuery(joinQuery).evaluate()) {
+					while (res.hasNext()) {
+						BindingSet bs = res.next();
+						assertEquals("explained subject", bs.getValue("s"), bs.getValue("es"));
+						assertEquals("explained object", bs.getValue("o"), bs.getValue("eo"));
+						count++;
+					}
+				}
+				assertTrue("Expected premises of the implicit types", count > 0);
+				// the subject is bound by a pattern written after the explain pattern
+				String subjectQuery = "PREFIX pr: <http://www.ontotext.com/proof/>\r\n" +
+						"PREFIX food: <http://www.w3.org/TR/2003/PR-owl-guide-20031209/food#>\r\n" +
+						"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\r\n" +
+						"PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\r\n" +
+						"select ?s ?es {\r\n" +
+						"     ?x pr:explain (?s rdf:type rdfs:Class) .\r\n" +
+						"     ?x pr:explainedSubject ?es .\r\n" +
+						"     ?s rdfs:subClassOf food:EdibleThing .\r\n" +
+						"}";
+				count = 0;
+				try (TupleQueryResult res = conn.prepareTupleQuery(subjectQuery).evaluate()) {
+					while (res.hasNext()) {
+						BindingSet bs = res.next();
+						assertEquals("explained subject", bs.getValue("s"), bs.getValue("es"));
+						count++;
+					}
+				}
+				assertTrue("Expected premises of the subclasses", count > 0);
+			} finally {
+				conn.close();
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testExplainAll() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-explain-all", null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				String premises = "     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:subject ?subj .\r\n" +
+						"     ?x pr:predicate ?pred .\r\n" +
+						"     ?x pr:object ?obj .\r\n" +
+						"     ?x pr:context ?context .\r\n" +
+						"}";
+				String explainAll = PREFIXES + "select ?es ?eo ?rule ?subj ?pred ?obj ?context {\r\n" +
+						"     ?x pr:explainAll (rdfs:subClassOf) .\r\n" +
+						"     ?x pr:explainedSubject ?es .\r\n" +
+						"     ?x pr:explainedObject ?eo .\r\n" + premises;
+				// pr:explain of each implicit statement with that predicate
+				String explain = PREFIXES + "select ?es ?eo ?rule ?subj ?pred ?obj ?context\r\n" +
+						"from named onto:implicit\r\n" +
+						"{\r\n" +
+						"     graph onto:implicit {?es rdfs:subClassOf ?eo}\r\n" +
+						"     ?x pr:explain (?es rdfs:subClassOf ?eo) .\r\n" + premises;
+				HashSet<String> all = new HashSet<String>();
+				int rows = 0;
+				try (TupleQueryResult res = conn.prepareTupleQuery(explainAll).evaluate()) {
+					while (res.hasNext()) {
+						BindingSet bs = res.next();
+						assertFalse("Expected the explicit statements to be skipped", "explicit".equals(bs.getValue("rule").stringValue()));
+						// a statement that is both explicit and inferred is not explained either
+						assertFalse("Expected an implicit statement " + bs, conn.hasStatement((Resource)bs.getValue("es"),
+								RDFS.SUBCLASSOF, bs.getValue("eo"), false));
+						all.add(premiseRow(bs));
+						rows++;
+					}
+				}
+				assertTrue("Expected premises of the implicit statements", rows > 0);
+				HashSet<String> expected = new HashSet<String>();
+				try (TupleQueryResult res = conn.prepareTupleQuery(explain).evaluate()) {
+					while (res.hasNext())
+						expected.add(premiseRow(res.next()));
+				}
+				assertEquals(expected, all);
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testExplainRowJoin() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-explain-row", null);
+		try {
+			RepositoryConnection conn = rep.getConnection();
+			try {
+				String explainQuery = PREFIXES +
+						"select ?x ?rule {\r\n" +
+						"     ?x pr:explain (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"}";
+				int premises = count(conn, explainQuery, "rule");
+				assertTrue("Expected premises of the statement", premises > 0);
+				String rowQuery = PREFIXES +
+						"select ?row ?rule {\r\n" +
+						"     ?row pr:explainRow (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+						"     ?row pr:rule ?rule .\r\n" +
+						"}";
+				assertEquals("explainRow rows", premises, count(conn, rowQuery, "rule"));
+				// the two patterns bind the same triples, each premise of one with each premise of the other
+				String joinQuery = PREFIXES +
+						"select ?a ?b ?ruleA ?ruleB {\r\n" +
+						"     ?a pr:explainRow (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+						"     ?b pr:explainRow (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+						"     ?a pr:rule ?ruleA .\r\n" +
+						"     ?b pr:rule ?ruleB .\r\n" +
+						"}";
+				assertEquals("explainRow join rows", premises * premises, count(conn, joinQuery, "ruleA", "ruleB"));
+			} finally {
+				conn.close();
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testProofIndex() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-index", null);
+		File dataDir = rep.getDataDir();
+		String explainQuery = PREFIXES +
+				"select ?rule ?subj ?pred ?obj ?context {\r\n" +
+				"     ?x pr:explain (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+				"     ?x pr:rule ?rule .\r\n" +
+				"     ?x pr:subject ?subj .\r\n" +
+				"     ?x pr:predicate ?pred .\r\n" +
+				"     ?x pr:object ?obj .\r\n" +
+				"     ?x pr:context ?context .\r\n" +
+				"}";
+		String buildQuery = PREFIXES + "select ?index ?n ?truncated { ?index pr:buildIndex ?n . ?index pr:truncated ?truncated }";
+		List<String> live;
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				live = rows(conn, explainQuery);
+				assertTrue("Expected premises of the statement", live.size() > 0);
+				assertEquals("index available", 0, stat(conn, "index.available"));
+				List<String> built = rows(conn, buildQuery);
+				assertEquals("Expected a single row", 1, built.size());
+				assertTrue("Expected the status node", built.get(0).contains(ProofPlugin.INDEX_URI.stringValue()));
+				assertTrue("Expected a complete build", built.get(0).contains("truncated=\"false\""));
+				assertEquals("index available", 1, stat(conn, "index.available"));
+				assertTrue("Expected indexed statements", stat(conn, "index.statements") > 0);
+				assertEquals("explained from the index", live, rows(conn, explainQuery));
+				// a commit that adds a statement makes the index stale
+				conn.add(VF.createIRI(FOOD, "Kiwi"), RDFS.SUBCLASSOF, VF.createIRI(FOOD, "Fruit"));
+				assertEquals("index available after a commit", 0, stat(conn, "index.available"));
+				assertEquals("explained by the inferencer", live, rows(conn, explainQuery));
+				rows(conn, buildQuery);
+				assertEquals("index available after a rebuild", 1, stat(conn, "index.available"));
+			}
+		} finally {
+			rep.shutDown();
+		}
+		// mapped again on restart
+		rep = openRepository(dataDir, null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				assertEquals("index available after a restart", 1, stat(conn, "index.available"));
+				assertEquals("explained from the index", live, rows(conn, explainQuery));
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testExplanationCacheInvalidation() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		// read when the plugin is created
+		System.setProperty("graphdb.proof.cacheMemory", String.valueOf(16 << 20));
+		SailRepository rep;
+		try {
+			rep = createRepository("proof-plugin-cache", null);
+		} finally {
+			System.clearProperty("graphdb.proof.cacheMemory");
+		}
+		String explainQuery = PREFIXES +
+				"select ?rule ?subj ?pred ?obj {\r\n" +
+				"     ?x pr:explain (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+				"     ?x pr:rule ?rule .\r\n" +
+				"     ?x pr:subject ?subj .\r\n" +
+				"     ?x pr:predicate ?pred .\r\n" +
+				"     ?x pr:object ?obj .\r\n" +
+				"}";
+		IRI grape = VF.createIRI(FOOD, "Grape");
+		IRI berry = VF.createIRI(FOOD, "Berry");
+		IRI edible = VF.createIRI(FOOD, "EdibleThing");
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				List<String> before = rows(conn, explainQuery);
+				assertTrue("Expected premises of the statement", before.size() > 0);
+				assertEquals("explained again (cached)", before, rows(conn, explainQuery));
+
+				// a commit adding a premise adds a solution
+				conn.add(grape, RDFS.SUBCLASSOF, berry);
+				conn.add(berry, RDFS.SUBCLASSOF, edible);
+				List<String> added = rows(conn, explainQuery);
+				assertTrue("Expected the solutions through food:Berry", added.size() > before.size());
+				assertTrue("Expected the premise food:Berry", added.toString().contains(berry.stringValue()));
+				assertEquals("explained again (cached)", added, rows(conn, explainQuery));
+
+				// a commit removing it takes the solution away
+				conn.remove(berry, RDFS.SUBCLASSOF, edible);
+				assertEquals("after the removal", before, rows(conn, explainQuery));
+
+				// the uncommitted premise is seen within the transaction only
+				conn.begin();
+				conn.add(berry, RDFS.SUBCLASSOF, edible);
+				assertEquals("within the transaction", added, rows(conn, explainQuery));
+				conn.rollback();
+				assertEquals("after the rollback", before, rows(conn, explainQuery));
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testIncrementalLimit() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-incremental", null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				String explain = "     ?x pr:explain (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:subject ?subj .\r\n" +
+						"     ?x pr:predicate ?pred .\r\n" +
+						"     ?x pr:object ?obj .\r\n";
+				String limited = PREFIXES + "select ?rule ?subj ?pred ?obj {\r\n" +
+						"     pr:options pr:maxSolutions 1 .\r\n" +
+						explain + "}";
+				String incremental = PREFIXES + "select ?rule ?subj ?pred ?obj {\r\n" +
+						"     pr:options pr:incremental true .\r\n" +
+						"     pr:options pr:maxSolutions 1 .\r\n" +
+						explain + "}";
+				List<String> expected = rows(conn, limited);
+				assertTrue("Expected the premises of a solution", expected.size() > 0);
+				assertEquals("incremental rows", expected, rows(conn, incremental));
+				// the producer is left waiting for the query after the first row and stopped when it is closed
+				assertEquals("incremental with limit", 1, count(conn, incremental + " limit 1", "rule"));
+				assertEquals("incremental with limit and a timeout", 1, count(conn, PREFIXES + "select ?rule {\r\n" +
+						"     pr:options pr:incremental true .\r\n" +
+						"     pr:options pr:timeout 10000 .\r\n" +
+						explain + "} limit 1", "rule"));
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testFilters() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-filters", null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				String explain = "     ?x pr:explain (food:Grape rdfs:subClassOf food:EdibleThing) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:subject ?subj .\r\n" +
+						"     ?x pr:predicate ?pred .\r\n" +
+						"     ?x pr:object ?obj .\r\n";
+				String select = PREFIXES + "select ?rule ?subj ?pred ?obj {\r\n";
+				List<String> all = rows(conn, select + explain + "}");
+				assertTrue("Expected premises of the statement", all.size() > 0);
+				String rule;
+				try (TupleQueryResult res = conn.prepareTupleQuery(select + explain + "} limit 1").evaluate()) {
+					rule = res.next().getValue("rule").stringValue();
+				}
+				// the rows of that rule only
+				List<String> ofRule = rows(conn, select + explain + "     filter(str(?rule) = \"" + rule + "\")\r\n}");
+				assertEquals("rule filter", ofRule, rows(conn, select +
+						"     pr:options pr:ruleFilter \"" + rule + "\" .\r\n" + explain + "}"));
+				// an options node applies to the explain pattern whose list it ends, not to the other branch
+				List<String> union = new ArrayList<String>(ofRule);
+				union.addAll(all);
+				Collections.sort(union);
+				assertEquals("rule filter of an options node", union, rows(conn, select +
+						"     {\r\n" +
+						"     ?opts pr:ruleFilter \"" + rule + "\" .\r\n" +
+						explain.replace("food:EdibleThing)", "food:EdibleThing ?opts)") +
+						"     } union {\r\n" +
+						explain +
+						"     }\r\n}"));
+				// a rule the ruleset does not have matches nothing and is not registered
+				assertEquals("unknown rule filter", 0, count(conn, select +
+						"     pr:options pr:ruleFilter \"no_such_rule\" .\r\n" + explain + "}"));
+				try (TupleQueryResult res = conn.prepareTupleQuery(PREFIXES + "select ?name { ?name pr:stats ?v }").evaluate()) {
+					while (res.hasNext())
+						assertFalse("Expected no metric of the unknown rule", res.next().getValue("name").stringValue().contains("no_such_rule"));
+				}
+				// the premises are in the food graph
+				assertEquals("graph filter", all, rows(conn, select +
+						"     pr:options pr:graphFilter food:Ontology .\r\n" + explain + "}"));
+				assertEquals("graph filter of another graph", 0, count(conn, select +
+						"     pr:options pr:graphFilter vin:Ontology .\r\n" + explain + "}"));
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testRuleCountTruncated() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-rule-count-truncated", null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				conn.add(new StringReader(TWO_DERIVATIONS), "http://example.com/", RDFFormat.TURTLE);
+				String ruleCount = "     ?x pr:ruleCount (ex:a ex:q ex:b) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:count ?count .\r\n" +
+						"     ?x pr:truncated ?truncated .\r\n}";
+				String select = PREFIXES + "select ?rule ?count ?truncated {\r\n";
+				long[] all = countAndTruncated(conn, select + ruleCount);
+				assertTrue("Expected both derivations, got " + all[0], all[0] >= 2);
+				assertEquals("not truncated", 0, all[1]);
+				// the limits stop the inferencer after the first derivation
+				long[] limited = countAndTruncated(conn, select + "     pr:options pr:maxSolutions 1 .\r\n" + ruleCount);
+				assertEquals("derivations with maxSolutions 1", 1, limited[0]);
+				assertEquals("truncated with maxSolutions 1", 1, limited[1]);
+				limited = countAndTruncated(conn, select + "     pr:options pr:maxPremises 1 .\r\n" + ruleCount);
+				assertEquals("derivations with maxPremises 1", 1, limited[0]);
+				assertEquals("truncated with maxPremises 1", 1, limited[1]);
+				limited = countAndTruncated(conn, select + "     pr:options pr:maxSolutions 100 .\r\n" + ruleCount);
+				assertEquals("derivations under the limit", all[0], limited[0]);
+				assertEquals("not truncated under the limit", 0, limited[1]);
+				// pr:isDerivable stops at the first solution by design
+				long[] derivable = countAndTruncated(conn, select + ruleCount.replace("pr:ruleCount", "pr:isDerivable"));
+				assertEquals("isDerivable", 1, derivable[0]);
+				assertEquals("isDerivable not truncated", 0, derivable[1]);
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testRuleCount() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-rule-count", null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				conn.add(new StringReader(TWO_DERIVATIONS), "http://example.com/", RDFFormat.TURTLE);
+				Map<String, Long> counts = new HashMap<String, Long>();
+				long total = 0;
+				try (TupleQueryResult res = conn.prepareTupleQuery(PREFIXES + "select ?rule ?count {\r\n" +
+						"     ?x pr:ruleCount (ex:a ex:q ex:b) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:count ?count .\r\n" +
+						"}").evaluate()) {
+					while (res.hasNext()) {
+						BindingSet bs = res.next();
+						long count = ((Literal)bs.getValue("count")).longValue();
+						counts.put(bs.getValue("rule").stringValue(), count);
+						total += count;
+					}
+				}
+				// each derivation once, whatever the order in which the rule has matched its premises
+				assertEquals("derivations", 2, total);
+				// the same as the solutions of pr:explain, two premises each
+				Map<String, Long> premises = new HashMap<String, Long>();
+				try (TupleQueryResult res = conn.prepareTupleQuery(PREFIXES + "select ?rule ?subj ?pred ?obj {\r\n" +
+						"     ?x pr:explain (ex:a ex:q ex:b) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:subject ?subj .\r\n" +
+						"     ?x pr:predicate ?pred .\r\n" +
+						"     ?x pr:object ?obj .\r\n" +
+						"}").evaluate()) {
+					while (res.hasNext())
+						premises.merge(res.next().getValue("rule").stringValue(), 1L, Long::sum);
+				}
+				assertEquals("rules", premises.keySet(), counts.keySet());
+				for (Map.Entry<String, Long> e : counts.entrySet())
+					assertEquals("premises of " + e.getKey(), 2 * e.getValue(), (long)premises.get(e.getKey()));
+				// an explicit statement
+				try (TupleQueryResult res = conn.prepareTupleQuery(PREFIXES + "select ?rule ?count {\r\n" +
+						"     ?x pr:ruleCount (ex:a ex:p ex:b) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:count ?count .\r\n" +
+						"}").evaluate()) {
+					BindingSet bs = res.next();
+					assertEquals("explicit", bs.getValue("rule").stringValue());
+					assertEquals(1, ((Literal)bs.getValue("count")).longValue());
+					assertFalse(res.hasNext());
+				}
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testIsDerivable() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-is-derivable", null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				conn.add(new StringReader(TWO_DERIVATIONS), "http://example.com/", RDFFormat.TURTLE);
+				String isDerivable = PREFIXES + "select ?rule {\r\n" +
+						"     ?x pr:isDerivable (%s) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"}";
+				assertEquals("derivable", 1, count(conn, String.format(isDerivable, "ex:a ex:q ex:b"), "rule"));
+				assertEquals("derivable from the sample", 1, count(conn, String.format(isDerivable, "food:Grape rdfs:subClassOf food:EdibleThing"), "rule"));
+				assertEquals("not derivable", 0, count(conn, String.format(isDerivable, "ex:b ex:q ex:a"), "rule"));
+				try (TupleQueryResult res = conn.prepareTupleQuery(String.format(isDerivable, "ex:a ex:p ex:b")).evaluate()) {
+					assertEquals("explicit", res.next().getValue("rule").stringValue());
+					assertFalse(res.hasNext());
+				}
+				// no longer derivable once a premise is removed
+				conn.remove(VF.createIRI("http://example.com/p"), RDFS.SUBPROPERTYOF, VF.createIRI("http://example.com/q"));
+				conn.remove(VF.createIRI("http://example.com/r"), RDFS.SUBPROPERTYOF, VF.createIRI("http://example.com/q"));
+				assertEquals("not derivable after the removal", 0, count(conn, String.format(isDerivable, "ex:a ex:q ex:b"), "rule"));
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testSupports() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = createRepository("proof-plugin-supports", null);
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				String supports = PREFIXES + "select ?subj ?pred ?obj ?rule ?depth {\r\n" +
+						"     ?x pr:supports (%s) .\r\n" +
+						"     ?x pr:subject ?subj .\r\n" +
+						"     ?x pr:predicate ?pred .\r\n" +
+						"     ?x pr:object ?obj .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:depth ?depth .\r\n" +
+						"}";
+				HashSet<String> conclusions = new HashSet<String>();
+				try (TupleQueryResult res = conn.prepareTupleQuery(String.format(supports, "food:Grape rdfs:subClassOf food:Fruit")).evaluate()) {
+					while (res.hasNext()) {
+						BindingSet bs = res.next();
+						assertNotNull("Expected the rule to be bound", bs.getValue("rule"));
+						assertEquals("direct conclusions", 1, ((Literal)bs.getValue("depth")).intValue());
+						conclusions.add(bs.getValue("subj").stringValue() + " " + bs.getValue("pred").stringValue() + " " + bs.getValue("obj").stringValue());
+					}
+				}
+				assertTrue("Expected food:Grape rdfs:subClassOf food:EdibleThing in " + conclusions,
+						conclusions.contains(FOOD + "Grape " + RDFS.SUBCLASSOF + " " + FOOD + "EdibleThing"));
+				for (String conclusion : conclusions)
+					assertFalse("Expected no conclusion about the wines", conclusion.contains("wine#"));
+
+				// the limit on the conclusions
+				String limited = PREFIXES + "select ?subj ?pred ?obj ?truncated {\r\n" +
+						"     pr:options pr:maxSolutions 1 .\r\n" +
+						"     ?x pr:supports (food:Grape rdfs:subClassOf food:Fruit) .\r\n" +
+						"     ?x pr:subject ?subj .\r\n" +
+						"     ?x pr:predicate ?pred .\r\n" +
+						"     ?x pr:object ?obj .\r\n" +
+						"     ?x pr:truncated ?truncated .\r\n" +
+						"}";
+				HashSet<String> limitedConclusions = new HashSet<String>();
+				boolean truncated = false;
+				try (TupleQueryResult res = conn.prepareTupleQuery(limited).evaluate()) {
+					while (res.hasNext()) {
+						BindingSet bs = res.next();
+						limitedConclusions.add(bs.getValue("subj").stringValue() + " " + bs.getValue("pred").stringValue() + " " + bs.getValue("obj").stringValue());
+						truncated |= ((Literal)bs.getValue("truncated")).booleanValue();
+					}
+				}
+				assertEquals("a single conclusion with maxSolutions 1", 1, limitedConclusions.size());
+				if (conclusions.size() > 1)
+					assertTrue("Expected the limit to be reported", truncated);
+
+				// a premise of the other graph supports no food statement
+				try (TupleQueryResult res = conn.prepareTupleQuery(String.format(supports, "vin:WhiteBordeaux rdfs:subClassOf vin:Bordeaux")).evaluate()) {
+					assertTrue("Expected conclusions of the wine premise", res.hasNext());
+					while (res.hasNext())
+						assertFalse("Expected no conclusion about food", res.next().getValue("subj").stringValue().startsWith(FOOD));
+				}
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	@Test
+	public void testCollapseSameAs() throws RepositoryException, MalformedQueryException, QueryEvaluationException, RDFParseException, IOException {
+		SailRepository rep = openRepository(tmpFolder.newFolder("proof-plugin-same-as"), "owl-horst-optimized");
+		try {
+			try (RepositoryConnection conn = rep.getConnection()) {
+				conn.add(new StringReader(SAME_AS), "http://example.com/", RDFFormat.TURTLE);
+				String select = PREFIXES + "select ?rule ?subj ?pred ?obj {\r\n";
+				String explain = "     ?x pr:explain (ex:a1 ex:q ex:b) .\r\n" +
+						"     ?x pr:rule ?rule .\r\n" +
+						"     ?x pr:subject ?subj .\r\n" +
+						"     ?x pr:predicate ?pred .\r\n" +
+						"     ?x pr:object ?obj .\r\n" +
+						"}";
+				List<String> all = rows(conn, select + explain);
+				List<String> collapsed = rows(conn, select + "     pr:options pr:collapseSameAs true .\r\n" + explain);
+				assertTrue("Expected the statement to be explained", collapsed.size() > 0);
+				assertTrue("Expected no more rows than without collapsing: " + collapsed + " " + all, collapsed.size() <= all.size());
+				// the premises only use the representative of the aliases
+				HashSet<String> subjects = new HashSet<String>();
+				try (TupleQueryResult res = conn.prepareTupleQuery(select + "     pr:options pr:collapseSameAs true .\r\n" + explain).evaluate()) {
+					while (res.hasNext()) {
+						BindingSet bs = res.next();
+						if (bs.getValue("pred").equals(VF.createIRI("http://example.com/p")))
+							subjects.add(bs.getValue("subj").stringValue());
+					}
+				}
+				assertEquals("a single subject of the ex:p premises " + subjects, 1, subjects.size());
+
+				// the aliases of the premise subject are expanded on request
+				HashSet<String> aliases = new HashSet<String>();
+				try (TupleQueryResult res = conn.prepareTupleQuery(PREFIXES + "select ?alias {\r\n" +
+						"     pr:options pr:collapseSameAs true .\r\n" +
+						"     ?x pr:explain (ex:a1 ex:q ex:b) .\r\n" +
+						"     ?x pr:predicate ex:p .\r\n" +
+						"     ?x pr:subjectAlias ?alias .\r\n" +
+						"}").evaluate()) {
+					while (res.hasNext())
+						aliases.add(res.next().getValue("alias").stringValue());
+				}
+				assertEquals(new HashSet<String>(Arrays.asList("http://example.com/a1", "http://example.com/a2")), aliases);
+				// ex:b has no aliases but itself
+				HashSet<String> objectAliases = new HashSet<String>();
+				try (TupleQueryResult res = conn.prepareTupleQuery(PREFIXES + "select ?alias {\r\n" +
+						"     pr:options pr:collapseSameAs true .\r\n" +
+						"     ?x pr:explain (ex:a1 ex:q ex:b) .\r\n" +
+						"     ?x pr:predicate ex:p .\r\n" +
+						"     ?x pr:objectAlias ?alias .\r\n" +
+						"}").evaluate()) {
+					while (res.hasNext())
+						objectAliases.add(res.next().getValue("alias").stringValue());
+				}
+				assertEquals(Collections.singleton("http://example.com/b"), objectAliases);
+			}
+		} finally {
+			rep.shutDown();
+		}
+	}
+
+	/**
+	 * the explained statement and the premise of a row, as a string
+	 */
+	private static String premiseRow(BindingSet bs) {
+		StringBuilder row = new StringBuilder();
+		for (String name : new String[] {"es", "eo", "rule", "subj", "pred", "obj", "context"})
+			row.append(bs.getValue(name)).append(' ');
+		return row.toString();
+	}
+
+	/**
+	 * the sum of ?count and the number of rows with ?truncated true
+	 */
+	private static long[] countAndTruncated(RepositoryConnection conn, String query) {
+		long[] result = new long[2];
+		try (TupleQueryResult res = conn.prepareTupleQuery(query).evaluate()) {
+			while (res.hasNext()) {
+				BindingSet bs = res.next();
+				result[0] += ((Literal)bs.getValue("count")).longValue();
+				if (((Literal)bs.getValue("truncated")).booleanValue())
+					result[1]++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * the sorted results, as strings
+	 */
+	private static List<String> rows(RepositoryConnection conn, String query) {
+		List<String> rows = new ArrayList<String>();
+		try (TupleQueryResult res = conn.prepareTupleQuery(query).evaluate()) {
+			while (res.hasNext())
+				rows.add(res.next().toString());
+		}
+		Collections.sort(rows);
+		return rows;
+	}
+
+	/**
+	 * the value of a metric of pr:stats
+	 */
+	private static long stat(RepositoryConnection conn, String name) {
+		String query = PREFIXES + "select ?v { \"" + name + "\" pr:stats ?v }";
+		try (TupleQueryResult res = conn.prepareTupleQuery(query).evaluate()) {
+			assertTrue("Expected the metric " + name, res.hasNext());
+			return ((Literal)res.next().getValue("v")).longValue();
+		}
+	}
+
+	/**
+	 * the number of results, checking that the given variables are always bound
+	 */
+	private static int count(RepositoryConnection conn, String query, String... bound) {
+		int count = 0;
+		try (TupleQueryResult res = conn.prepareTupleQuery(query).evaluate()) {
+			while (res.hasNext()) {
+				BindingSet bs = res.next();
+				for (String name : bound)
+					assertNotNull("Expected " + name + " to be bound", bs.getValue(name));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * an initialized repository with the plugin and the sample data
+	 * @param ruleset null for the default one
+	 */
+	private SailRepository createRepository(String folder, String ruleset) throws IOException {
+		SailRepository rep = openRepository(tmpFolder.newFolder(folder), ruleset);
+		try (RepositoryConnection conn = rep.getConnection()) {
+			String dataFile = Thread.currentThread().getContextClassLoader().getResource("proof/sample.trig").getFile();
+			conn.add(new File(dataFile), "http://base.uri", RDFFormat.TRIG);
+		}
+		return rep;
+	}
+
+	/**
+	 * an initialized repository with the plugin in an existing data directory
+	 */
+	private SailRepository openRepository(File dataDir, String ruleset) {
+		Map<String, String> params = new HashMap<String, String>();
+		OwlimSchemaRepository sail = new OwlimSchemaRepository();
+		params.put("register-plugins", ProofPlugin.class.getName());
+		if (ruleset != null)
+			params.put("ruleset", ruleset);
+		sail.setParameters(params);
+		SailRepository rep = new SailRepository(sail);
+		rep.setDataDir(dataDir);
+		rep.init();
+		return rep;
+	}
+}
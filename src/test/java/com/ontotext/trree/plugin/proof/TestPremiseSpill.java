@@ -0,0 +1,138 @@
+package com.ontotext.trree.plugin.proof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * checks the solutions and the duplicate-check keys moved out of the heap: everything is read back after the
+ * spill, the permuted duplicates are found across the rehashes of the spilled table and the buffers go back
+ * to the pool on release(), from where they are reused with their old content
+ */
+public class TestPremiseSpill {
+	private static final int SOLUTIONS = 500;
+	private static final int WARM_CHUNKS = 8;
+
+	private int pooled;
+
+	@Before
+	public void warmPool() {
+		// the pool starts empty, so some free buffers make the take and give of the tests visible
+		ByteBuffer[] buffers = new ByteBuffer[WARM_CHUNKS];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = PremiseSpill.POOL.take();
+		for (ByteBuffer buffer : buffers)
+			PremiseSpill.POOL.give(buffer);
+		pooled = PremiseSpill.POOL.size();
+	}
+
+	@Test
+	public void testArenaReadBack() {
+		PremiseArena arena = new PremiseArena(10);
+		for (int s = 0; s < SOLUTIONS; s++) {
+			long[] packed = premises(s);
+			arena.add(s % 7, packed, 0, premiseCount(s));
+		}
+		assertTrue("Expected the premises to be spilled", arena.isSpilled());
+		assertTrue("Expected the buffers to be taken from the pool", PremiseSpill.POOL.size() < pooled);
+		checkArena(arena);
+		// the copy for the shared cache is on the heap
+		PremiseArena copy = arena.copy(SOLUTIONS);
+		assertFalse(copy.isSpilled());
+		checkArena(copy);
+
+		arena.release();
+		assertEquals("Expected the buffers to be returned", pooled, PremiseSpill.POOL.size());
+		assertEquals(0, arena.solutionCount());
+	}
+
+	@Test
+	public void testKeySetDuplicatesAcrossRehash() {
+		for (int round = 0; round < 2; round++) {
+			// the second round reuses the buffers released by the first one, with their old content
+			SolutionKeySet seen = new SolutionKeySet(8);
+			for (int s = 0; s < SOLUTIONS; s++)
+				assertTrue("solution " + s, seen.add(s % 7, premises(s), 0, premiseCount(s)));
+			assertTrue("Expected the keys to be spilled", seen.isSpilled());
+			assertEquals(SOLUTIONS, seen.size());
+			// the same premises in reverse order, added after the table was rehashed several times
+			for (int s = 0; s < SOLUTIONS; s++)
+				assertFalse("permuted solution " + s, seen.add(s % 7, reversed(s), 0, premiseCount(s)));
+			// the same premises of another rule
+			for (int s = 0; s < SOLUTIONS; s++)
+				assertTrue("other rule " + s, seen.add(7 + s % 7, premises(s), 0, premiseCount(s)));
+			assertEquals(2 * SOLUTIONS, seen.size());
+
+			seen.release();
+			assertEquals("Expected the buffers to be returned", pooled, PremiseSpill.POOL.size());
+			assertEquals(0, seen.size());
+		}
+	}
+
+	@Test
+	public void testLongsZeroReusedChunks() {
+		long count = PremiseSpill.Longs.LONGS_PER_CHUNK + 100;
+		PremiseSpill.Longs longs = new PremiseSpill.Longs();
+		for (long i = 0; i < count; i++)
+			longs.set(i, i + 1);
+		for (long i = 0; i < count; i++)
+			assertEquals(i + 1, longs.get(i));
+		longs.release();
+		assertEquals("Expected the buffers to be returned", pooled, PremiseSpill.POOL.size());
+
+		PremiseSpill.Longs reused = new PremiseSpill.Longs();
+		reused.zero(count);
+		for (long i = 0; i < count; i++)
+			assertEquals(0, reused.get(i));
+		reused.release();
+		assertEquals(pooled, PremiseSpill.POOL.size());
+	}
+
+	private static void checkArena(PremiseArena arena) {
+		assertEquals(SOLUTIONS, arena.solutionCount());
+		int premise = 0;
+		for (int s = 0; s < SOLUTIONS; s++) {
+			assertEquals(s % 7, arena.rule(s));
+			assertEquals(premise, arena.start(s));
+			assertEquals(premise + premiseCount(s), arena.end(s));
+			long[] packed = premises(s);
+			for (int p = 0; p < premiseCount(s); p++) {
+				for (int f = 0; f < SolutionKeySet.PREMISE_WIDTH; f++)
+					assertEquals("solution " + s + " premise " + p, packed[p * SolutionKeySet.PREMISE_WIDTH + f], arena.get(premise + p, f));
+			}
+			premise += premiseCount(s);
+		}
+		assertEquals(premise, arena.premiseCount());
+	}
+
+	private static int premiseCount(int s) {
+		return 1 + s % 3;
+	}
+
+	private static long[] premises(int s) {
+		long[] packed = new long[premiseCount(s) * SolutionKeySet.PREMISE_WIDTH];
+		for (int p = 0; p < premiseCount(s); p++) {
+			int offset = p * SolutionKeySet.PREMISE_WIDTH;
+			packed[offset] = 1000L * s + p;
+			packed[offset + 1] = 7;
+			packed[offset + 2] = 1000L * s + 10 + p;
+			packed[offset + 3] = 3;
+			packed[offset + 4] = p % 2;
+		}
+		return packed;
+	}
+
+	private static long[] reversed(int s) {
+		long[] packed = premises(s);
+		long[] reversed = new long[packed.length];
+		int count = premiseCount(s);
+		for (int p = 0; p < count; p++)
+			System.arraycopy(packed, p * SolutionKeySet.PREMISE_WIDTH, reversed, (count - 1 - p) * SolutionKeySet.PREMISE_WIDTH, SolutionKeySet.PREMISE_WIDTH);
+		return reversed;
+	}
+}
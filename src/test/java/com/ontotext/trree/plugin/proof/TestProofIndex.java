@@ -0,0 +1,122 @@
+package com.ontotext.trree.plugin.proof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.LongFunction;
+
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * checks the persisted proof index: the statements written in several sorted runs are merged and found
+ * by the lookups, an index written for other entities is not opened and a mapped index is replaced
+ */
+public class TestProofIndex {
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private final RuleNames ruleNames = new RuleNames();
+	private final LongFunction<Value> values = id -> SimpleValueFactory.getInstance().createLiteral("value" + id);
+
+	@Test
+	public void testRunsAreMerged() throws IOException {
+		File dir = tmpFolder.newFolder();
+		int rule = ruleNames.indexOf("rule_test");
+		// a run of 7 statements, some of them added more than once as if found in several contexts
+		ProofIndex.Writer writer = new ProofIndex.Writer(new File(dir, ProofIndex.FILE_NAME), 7);
+		Random random = new Random(1);
+		TreeSet<Long> subjects = new TreeSet<Long>();
+		for (int i = 0; i < 500; i++) {
+			long subj = 1 + random.nextInt(300);
+			subjects.add(subj);
+			PremiseArena solutions = new PremiseArena();
+			solutions.add(rule, subj + 1, 2, 3, 0, 0);
+			writer.add(subj, 2, 3, solutions);
+		}
+		assertEquals(subjects.size(), writer.finish(ruleNames, 1000, values));
+		assertEquals("Expected the run files to be deleted", 1, dir.listFiles().length);
+
+		ProofIndex index = new ProofIndex(dir);
+		index.open(1000, values);
+		assertTrue(index.isAvailable());
+		assertEquals(subjects.size(), index.size());
+		for (long subj = 0; subj < 310; subj++) {
+			PremiseArena solutions = index.get(subj, 2, 3, ruleNames);
+			if (!subjects.contains(subj)) {
+				assertNull(solutions);
+				continue;
+			}
+			assertNotNull(solutions);
+			assertEquals(1, solutions.solutionCount());
+			assertEquals(rule, solutions.rule(0));
+			assertEquals(subj + 1, solutions.get(0, 0));
+		}
+	}
+
+	@Test
+	public void testOtherEntitiesAreStale() throws IOException {
+		File dir = tmpFolder.newFolder();
+		ProofIndex.Writer writer = new ProofIndex.Writer(new File(dir, ProofIndex.FILE_NAME));
+		for (long subj = 1; subj <= 100; subj++) {
+			PremiseArena solutions = new PremiseArena();
+			solutions.add(RuleNames.EXPLICIT_INDEX, subj, 2, 4, 0, 0);
+			writer.add(subj, 2, 3, solutions);
+		}
+		writer.finish(ruleNames, 1000, values);
+
+		// the ids are mapped to other values
+		ProofIndex index = new ProofIndex(dir);
+		index.open(1000, id -> SimpleValueFactory.getInstance().createLiteral("other" + id));
+		assertFalse(index.isAvailable());
+		assertTrue(new File(dir, ProofIndex.STALE_FILE_NAME).exists());
+		index.open(1000, values);
+		assertFalse("Expected the index to stay stale", index.isAvailable());
+	}
+
+	@Test
+	public void testSmallerEntityPoolIsStale() throws IOException {
+		File dir = tmpFolder.newFolder();
+		ProofIndex.Writer writer = new ProofIndex.Writer(new File(dir, ProofIndex.FILE_NAME));
+		PremiseArena solutions = new PremiseArena();
+		solutions.add(RuleNames.EXPLICIT_INDEX, 1, 2, 4, 0, 0);
+		writer.add(1, 2, 3, solutions);
+		writer.finish(ruleNames, 1000, values);
+
+		ProofIndex index = new ProofIndex(dir);
+		index.open(999, values);
+		assertFalse(index.isAvailable());
+	}
+
+	@Test
+	public void testInstallReplacesMappedIndex() throws IOException {
+		File dir = tmpFolder.newFolder();
+		int rule = ruleNames.indexOf("rule_test");
+		ProofIndex index = new ProofIndex(dir);
+		for (long round = 1; round <= 3; round++) {
+			// the index of the previous round is mapped while the next one is written and installed
+			ProofIndex.Writer writer = index.writer();
+			PremiseArena solutions = new PremiseArena();
+			solutions.add(rule, round, 2, 4, 0, 0);
+			writer.add(1, 2, 3, solutions);
+			writer.finish(ruleNames, 1000, values);
+			index.install(writer, true);
+			assertTrue(index.isAvailable());
+			assertEquals(round, index.get(1, 2, 3, ruleNames).get(0, 0));
+		}
+		index.close();
+		assertFalse(index.isAvailable());
+		assertNull(index.get(1, 2, 3, ruleNames));
+		assertEquals(1, dir.listFiles().length);
+	}
+}
@@ -0,0 +1,397 @@
+package com.ontotext.trree.plugin.proof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import com.ontotext.graphdb.Config;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.OWL;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.model.vocabulary.RDFS;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.junit.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.trree.OwlimSchemaRepository;
+
+/**
+ * a load test of concurrent proof queries against an embedded repository, skipped unless the system property
+ * graphdb.proof.load is set (mvn -P load test). A generated OWL-Horst data set is queried by a number of client
+ * threads with a mix of query shapes and the throughput, latency percentiles, allocation per query, GC and the
+ * time the clients were blocked are written as JSON, a baseline to compare later changes against.
+ *
+ * the settings are system properties: graphdb.proof.load.threads (8), .scale (individuals, 10000), .warmup and
+ * .seconds (10 and 30), .shapes (a comma separated subset of SHAPES) and .output (target/proof-load.json)
+ */
+public class TestProofLoad {
+	private static final Logger logger = LoggerFactory.getLogger(TestProofLoad.class);
+
+	@ClassRule
+	public static TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+	static final String NAMESPACE = "http://example.com/load/";
+	static final String PREFIXES = "PREFIX pr: <http://www.ontotext.com/proof/>\n" +
+			"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n";
+	static final String ACCESSORS =
+			"     ?ctx pr:rule ?rule .\n" +
+			"     ?ctx pr:subject ?subj .\n" +
+			"     ?ctx pr:predicate ?pred .\n" +
+			"     ?ctx pr:object ?obj .\n" +
+			"     ?ctx pr:context ?context .\n";
+	// the query shapes and their share of the queries
+	static final String[] SHAPES = {"explain", "explainRow", "proofTree", "ruleCount", "isDerivable", "explainAll"};
+	static final int[] WEIGHTS = {40, 20, 10, 10, 15, 5};
+
+	final int threads = Integer.getInteger("graphdb.proof.load.threads", 8);
+	final int scale = Integer.getInteger("graphdb.proof.load.scale", 10000);
+	final int warmup = Integer.getInteger("graphdb.proof.load.warmup", 10);
+	final int seconds = Integer.getInteger("graphdb.proof.load.seconds", 30);
+	final String output = System.getProperty("graphdb.proof.load.output", "target/proof-load.json");
+
+	SailRepository repository;
+	// the implicit statements the queries explain
+	List<String> statements = new ArrayList<String>();
+
+	@BeforeClass
+	public static void setWorkDir() {
+		System.setProperty("graphdb.home.work", String.valueOf(tmpFolder.getRoot()));
+		Config.reset();
+	}
+
+	@AfterClass
+	public static void resetWorkDir() {
+		System.clearProperty("graphdb.home.work");
+		Config.reset();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		Assume.assumeTrue("the load test runs with -Dgraphdb.proof.load=true", Boolean.getBoolean("graphdb.proof.load"));
+		Map<String, String> params = new HashMap<String, String>();
+		OwlimSchemaRepository sail = new OwlimSchemaRepository();
+		params.put("register-plugins", ProofPlugin.class.getName());
+		params.put("ruleset", "owl-horst-optimized");
+		sail.setParameters(params);
+		repository = new SailRepository(sail);
+		repository.setDataDir(tmpFolder.newFolder("proof-plugin-load"));
+		repository.init();
+		try (RepositoryConnection conn = repository.getConnection()) {
+			conn.begin();
+			generate(conn, scale, new Random(42));
+			conn.commit();
+			// a sample of the implicit statements, in a fixed order so the runs are comparable
+			String sample = "select ?s ?p ?o from <http://www.ontotext.com/implicit> {\n" +
+					"     ?s ?p ?o . filter(strstarts(str(?s), \"" + NAMESPACE + "\"))\n" +
+					"} order by ?s ?p ?o limit 5000";
+			try (TupleQueryResult res = conn.prepareTupleQuery(sample).evaluate()) {
+				while (res.hasNext()) {
+					BindingSet bs = res.next();
+					statements.add(term(bs.getValue("s")) + " " + term(bs.getValue("p")) + " " + term(bs.getValue("o")));
+				}
+			}
+		}
+		assertTrue("Expected implicit statements to explain", !statements.isEmpty());
+	}
+
+	@After
+	public void tearDown() {
+		if (repository != null)
+			repository.shutDown();
+	}
+
+	/**
+	 * an OWL-Horst data set: a class tree, properties with domains and ranges, a property hierarchy, inverse,
+	 * symmetric and transitive properties and owl:sameAs links, over scale individuals
+	 */
+	static void generate(RepositoryConnection conn, int scale, Random random) {
+		ValueFactory vf = conn.getValueFactory();
+		int classes = Math.max(8, scale / 20);
+		for (int i = 1; i < classes; i++)
+			conn.add(iri(vf, "C" + i), RDFS.SUBCLASSOF, iri(vf, "C" + ((i - 1) / 4)));
+		int properties = 10;
+		for (int i = 0; i < properties; i++) {
+			conn.add(iri(vf, "p" + i), RDFS.DOMAIN, iri(vf, "C" + (1 + random.nextInt(classes - 1))));
+			conn.add(iri(vf, "p" + i), RDFS.RANGE, iri(vf, "C" + (1 + random.nextInt(classes - 1))));
+			if (i > 0)
+				conn.add(iri(vf, "p" + i), RDFS.SUBPROPERTYOF, iri(vf, "p" + (i - 1)));
+		}
+		conn.add(iri(vf, "partOf"), RDF.TYPE, OWL.TRANSITIVEPROPERTY);
+		conn.add(iri(vf, "hasPart"), OWL.INVERSEOF, iri(vf, "partOf"));
+		conn.add(iri(vf, "near"), RDF.TYPE, OWL.SYMMETRICPROPERTY);
+		for (int x = 0; x < scale; x++) {
+			IRI individual = iri(vf, "x" + x);
+			conn.add(individual, RDF.TYPE, iri(vf, "C" + (classes / 2 + random.nextInt(classes - classes / 2))));
+			conn.add(individual, iri(vf, "p" + random.nextInt(properties)), iri(vf, "x" + random.nextInt(scale)));
+			if (random.nextInt(4) == 0)
+				conn.add(individual, iri(vf, "near"), iri(vf, "x" + random.nextInt(scale)));
+			// chains of five parts
+			if (x % 5 != 4)
+				conn.add(individual, iri(vf, "partOf"), iri(vf, "x" + (x + 1)));
+			if (random.nextInt(100) == 0)
+				conn.add(individual, OWL.SAMEAS, iri(vf, "x" + random.nextInt(scale)));
+		}
+	}
+
+	@Test
+	public void testConcurrentLoad() throws Exception {
+		List<Integer> shapes = new ArrayList<Integer>();
+		String selected = System.getProperty("graphdb.proof.load.shapes");
+		for (int i = 0; i < SHAPES.length; i++) {
+			if (selected == null || Arrays.asList(selected.split(",")).contains(SHAPES[i]))
+				shapes.add(i);
+		}
+		assertTrue("Expected a known query shape in " + selected, !shapes.isEmpty());
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean.isThreadContentionMonitoringSupported())
+			threadBean.setThreadContentionMonitoringEnabled(true);
+		com.sun.management.ThreadMXBean allocationBean = (threadBean instanceof com.sun.management.ThreadMXBean) ?
+				(com.sun.management.ThreadMXBean)threadBean : null;
+
+		Client[] clients = new Client[threads];
+		for (int t = 0; t < threads; t++)
+			clients[t] = new Client(t, shapes);
+		runPhase(clients, warmup, false);
+		long gcCount = 0, gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount -= gc.getCollectionCount();
+			gcTime -= gc.getCollectionTime();
+		}
+		long elapsed = runPhase(clients, seconds, true);
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += gc.getCollectionCount();
+			gcTime += gc.getCollectionTime();
+		}
+
+		long queries = 0, errors = 0, allocated = 0, blockedCount = 0, blockedTime = 0;
+		long[][] latencies = new long[SHAPES.length][];
+		for (int s = 0; s < SHAPES.length; s++)
+			latencies[s] = new long[0];
+		for (Client client : clients) {
+			queries += client.measured;
+			errors += client.errors;
+			allocated += client.allocated;
+			blockedCount += client.blockedCount;
+			blockedTime += client.blockedTime;
+			for (int s = 0; s < SHAPES.length; s++) {
+				long[] all = Arrays.copyOf(latencies[s], latencies[s].length + client.counts[s]);
+				System.arraycopy(client.latencies[s], 0, all, latencies[s].length, client.counts[s]);
+				latencies[s] = all;
+			}
+		}
+		long[] total = new long[0];
+		for (long[] l : latencies) {
+			int from = total.length;
+			total = Arrays.copyOf(total, from + l.length);
+			System.arraycopy(l, 0, total, from, l.length);
+		}
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"threads\": ").append(threads).append(",\n");
+		json.append("  \"scale\": ").append(scale).append(",\n");
+		json.append("  \"statements\": ").append(statements.size()).append(",\n");
+		json.append("  \"seconds\": ").append(format(elapsed / 1e9)).append(",\n");
+		json.append("  \"queries\": ").append(queries).append(",\n");
+		json.append("  \"errors\": ").append(errors).append(",\n");
+		json.append("  \"throughput\": ").append(format(queries / (elapsed / 1e9))).append(",\n");
+		json.append("  \"latencyMillis\": ").append(percentiles(total)).append(",\n");
+		json.append("  \"allocatedBytesPerQuery\": ").append((allocationBean != null && queries > 0) ? allocated / queries : -1).append(",\n");
+		json.append("  \"gc\": {\"count\": ").append(gcCount).append(", \"millis\": ").append(gcTime).append("},\n");
+		json.append("  \"blocked\": {\"count\": ").append(blockedCount).append(", \"millis\": ").append(blockedTime).append("},\n");
+		json.append("  \"shapes\": {");
+		boolean first = true;
+		for (int s : shapes) {
+			json.append(first ? "\n" : ",\n");
+			json.append("    \"").append(SHAPES[s]).append("\": ").append(percentiles(latencies[s]));
+			first = false;
+		}
+		json.append("\n  }\n}\n");
+		File file = new File(output);
+		if (file.getAbsoluteFile().getParentFile() != null)
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(json.toString());
+		}
+		logger.info("Load test results written to {}\n{}", file, json);
+
+		assertEquals("query errors, see the log", 0, errors);
+		assertTrue("Expected queries to complete", queries > 0);
+	}
+
+	/**
+	 * runs all clients for that many seconds
+	 * @return the elapsed nanoseconds
+	 */
+	private long runPhase(Client[] clients, int seconds, boolean measured) throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(clients.length);
+		long start = System.nanoTime();
+		Thread[] running = new Thread[clients.length];
+		for (int t = 0; t < clients.length; t++) {
+			final Client client = clients[t];
+			running[t] = new Thread(() -> {
+				try {
+					client.run(deadline, measured);
+				} finally {
+					done.countDown();
+				}
+			}, "proof-load-" + t);
+			running[t].start();
+		}
+		done.await();
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * a client thread with its own connection, picks a query shape and a statement at random for each query
+	 */
+	class Client {
+		final Random random;
+		final List<Integer> shapes;
+		int weights = 0;
+		// latencies in nanoseconds by shape, of the measured queries
+		long[][] latencies = new long[SHAPES.length][1024];
+		int[] counts = new int[SHAPES.length];
+		long measured = 0;
+		long errors = 0;
+		long allocated = 0;
+		long blockedCount = 0;
+		long blockedTime = 0;
+
+		Client(int index, List<Integer> shapes) {
+			this.random = new Random(index);
+			this.shapes = shapes;
+			for (int s : shapes)
+				weights += WEIGHTS[s];
+		}
+
+		void run(long deadline, boolean measure) {
+			ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			long tid = Thread.currentThread().getId();
+			com.sun.management.ThreadMXBean allocationBean = (threadBean instanceof com.sun.management.ThreadMXBean) ?
+					(com.sun.management.ThreadMXBean)threadBean : null;
+			long allocatedBefore = (allocationBean != null) ? allocationBean.getThreadAllocatedBytes(tid) : 0;
+			try (RepositoryConnection conn = repository.getConnection()) {
+				while (System.nanoTime() < deadline) {
+					int shape = pick();
+					String query = query(shape, statements.get(random.nextInt(statements.size())));
+					long start = System.nanoTime();
+					try (TupleQueryResult res = conn.prepareTupleQuery(query).evaluate()) {
+						while (res.hasNext())
+							res.next();
+					} catch (RuntimeException e) {
+						errors++;
+						logger.error("Query failed: {}", query, e);
+						continue;
+					}
+					long latency = System.nanoTime() - start;
+					if (measure) {
+						if (counts[shape] == latencies[shape].length)
+							latencies[shape] = Arrays.copyOf(latencies[shape], counts[shape] * 2);
+						latencies[shape][counts[shape]++] = latency;
+						measured++;
+					}
+				}
+			}
+			if (measure) {
+				if (allocationBean != null)
+					allocated = allocationBean.getThreadAllocatedBytes(tid) - allocatedBefore;
+				ThreadInfo info = threadBean.getThreadInfo(tid);
+				if (info != null) {
+					blockedCount = Math.max(0, info.getBlockedCount());
+					// -1 when the contention monitoring is not supported
+					blockedTime = Math.max(0, info.getBlockedTime());
+				}
+			}
+		}
+
+		private int pick() {
+			int r = random.nextInt(weights);
+			for (int s : shapes) {
+				r -= WEIGHTS[s];
+				if (r < 0)
+					return s;
+			}
+			return shapes.get(0);
+		}
+	}
+
+	static String query(int shape, String statement) {
+		switch (SHAPES[shape]) {
+		case "explain":
+			return PREFIXES + "select * {\n     ?ctx pr:explain (" + statement + ") .\n" + ACCESSORS + "}";
+		case "explainRow":
+			return PREFIXES + "select * {\n     ?premise pr:explainRow (" + statement + ") .\n" +
+					"     ?premise pr:rule ?rule .\n     ?premise pr:context ?context .\n}";
+		case "proofTree":
+			return PREFIXES + "select * {\n     ?ctx pr:proofTree (" + statement + " 3) .\n     ?ctx pr:node ?node .\n" + ACCESSORS + "}";
+		case "ruleCount":
+			return PREFIXES + "select * {\n     ?ctx pr:ruleCount (" + statement + ") .\n     ?ctx pr:rule ?rule .\n     ?ctx pr:count ?count .\n}";
+		case "isDerivable":
+			return PREFIXES + "select * {\n     ?ctx pr:isDerivable (" + statement + ") .\n     ?ctx pr:rule ?rule .\n} limit 1";
+		case "explainAll":
+			return PREFIXES + "select * {\n     ?ctx pr:explainAll (rdf:type) .\n" + ACCESSORS + "} limit 100";
+		default:
+			throw new IllegalArgumentException(SHAPES[shape]);
+		}
+	}
+
+	/**
+	 * p50, p99, p999 and max of the latencies in milliseconds
+	 */
+	static String percentiles(long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		return "{\"count\": " + sorted.length + ", \"p50\": " + format(percentile(sorted, 0.5)) +
+				", \"p99\": " + format(percentile(sorted, 0.99)) + ", \"p999\": " + format(percentile(sorted, 0.999)) +
+				", \"max\": " + format((sorted.length > 0) ? sorted[sorted.length - 1] / 1e6 : 0) + "}";
+	}
+
+	static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+	}
+
+	static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	static String term(Value value) {
+		if (value instanceof IRI)
+			return "<" + value.stringValue() + ">";
+		// the data set has IRIs only, a literal is written as a plain string
+		return "\"" + value.stringValue().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	static IRI iri(ValueFactory vf, String local) {
+		return vf.createIRI(NAMESPACE, local);
+	}
+}
@@ -0,0 +1,87 @@
+package com.ontotext.trree.plugin.proof;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * checks that pr:shortestProof returns a minimal proof when the cost of a statement found on one path
+ * depends on a statement excluded as a cycle on that path
+ */
+public class TestShortestProof {
+	private static final long R = 1, X = 2, B = 3, E = 4, L = 5;
+
+	private final ProofPlugin plugin = new ProofPlugin();
+	private final HashMap<TripleKey, PremiseArena> proofs = new HashMap<TripleKey, PremiseArena>();
+
+	@Test
+	public void testCostBelowCycleIsNotMemoized() {
+		// R <- {X, B}; X <- {B} | {E}; B <- {X} | {L}; E is explicit and L needs a chain of 4 rules.
+		// X is searched first, B below it cannot use X (a cycle) and costs 6 through L on that path,
+		// while from R it costs 2 through X
+		derive(R, "rR", X, B);
+		derive(X, "rXB", B);
+		derive(X, "rXE", E);
+		derive(B, "rBX", X);
+		derive(B, "rBL", L);
+		derive(L, "l1", 6);
+		derive(6, "l2", 7);
+		derive(7, "l3", 8);
+		derive(8, "l4", E);
+		explicit(E);
+
+		List<String> rules = shortestProof(R);
+		// R (1) + X through E (1) + B through X (1 + 1) = 4
+		assertEquals("[rR, rR, rXE, rBX]", rules.toString());
+	}
+
+	@Test
+	public void testCycleOnlyIsNotProven() {
+		derive(R, "rR", X);
+		derive(X, "rXR", R);
+		assertEquals(0, shortestProof(R).size());
+	}
+
+	private List<String> shortestProof(long subj) {
+		ProofPlugin.ContextImpl ctx = plugin.new ContextImpl();
+		ProofPlugin.ShortestProofIter iter = plugin.new ShortestProofIter(ctx, 1) {
+			@Override
+			PremiseArena solutionsOf(TripleKey key) {
+				PremiseArena solutions = proofs.get(key);
+				return (solutions != null) ? solutions : new PremiseArena();
+			}
+		};
+		iter.build(subj, 0, 0);
+		List<String> rules = new ArrayList<String>();
+		while (iter.next())
+			rules.add(iter.currentRule());
+		assertFalse(iter.truncated);
+		return rules;
+	}
+
+	private void derive(long subj, String rule, long... premises) {
+		long[] packed = new long[premises.length * SolutionKeySet.PREMISE_WIDTH];
+		for (int p = 0; p < premises.length; p++)
+			packed[p * SolutionKeySet.PREMISE_WIDTH] = premises[p];
+		solutions(subj).add(plugin.ruleNames.indexOf(rule), packed, 0, premises.length);
+	}
+
+	private void explicit(long subj) {
+		solutions(subj).add(RuleNames.EXPLICIT_INDEX, new long[] {subj, 0, 0, 0, 0}, 0, 1);
+	}
+
+	private PremiseArena solutions(long subj) {
+		TripleKey key = new TripleKey(subj, 0, 0);
+		PremiseArena solutions = proofs.get(key);
+		if (solutions == null) {
+			solutions = new PremiseArena();
+			proofs.put(key, solutions);
+		}
+		return solutions;
+	}
+}